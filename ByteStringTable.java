@@ -0,0 +1,97 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class ByteStringTable {
+
+    /**
+     * The UTF-8 bytes of each string in the table, the string itself, and
+     * the hash of its bytes. Empty slots have a null key.
+     */
+    private byte[][] keys = new byte[1024][];
+    private String[] values = new String[1024];
+    private int[] hashes = new int[1024];
+
+    /**
+     * int size: The number of strings in the table.
+     */
+    private int size = 0;
+
+    /**
+     * Returns the string for a run of UTF-8 bytes. The string is only
+     * created the first time those bytes are seen; after that the same
+     * String object is returned.
+     *
+     * @param bytes  Array holding the bytes
+     * @param offset Index of the first byte
+     * @param length Number of bytes
+     * @return The decoded string
+     */
+    public String get(byte[] bytes, int offset, int length) {
+        int hash = hash(bytes, offset, length);
+        int mask = keys.length - 1;
+        int slot = hash & mask;
+
+        // Linear probing: walk forward until the bytes or an empty slot is
+        // found
+        while (keys[slot] != null) {
+            if (hashes[slot] == hash && Arrays.equals(keys[slot], 0,
+                    keys[slot].length, bytes, offset, offset + length)) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        String value = new String(bytes, offset, length,
+                StandardCharsets.UTF_8);
+        keys[slot] = Arrays.copyOfRange(bytes, offset, offset + length);
+        values[slot] = value;
+        hashes[slot] = hash;
+        size++;
+
+        // Keep the table at most half full so probes stay short
+        if (size * 2 > keys.length) {
+            resize();
+        }
+
+        return value;
+    }
+
+    /**
+     * @return The number of distinct strings in the table
+     */
+    public int size() {
+        return size;
+    }
+
+    private void resize() {
+        byte[][] oldKeys = keys;
+        String[] oldValues = values;
+        int[] oldHashes = hashes;
+
+        keys = new byte[oldKeys.length * 2][];
+        values = new String[oldKeys.length * 2];
+        hashes = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = oldHashes[i] & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int hash = 1;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        // Spread the high bits into the low ones used to pick a slot
+        return hash ^ (hash >>> 16);
+    }
+}
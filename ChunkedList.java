@@ -0,0 +1,132 @@
+import java.util.Arrays;
+
+/**
+ * A list of references kept in chunks of ~CHUNK_SIZE~ entries, so that a
+ * copy can share the chunks and only clone the ones it changes. Copying a
+ * list and changing one entry of the copy costs the list of chunks and one
+ * chunk, rather than every entry.
+ *
+ * @param <T> The type of the entries
+ */
+public class ChunkedList<T> {
+
+    /**
+     * The number of entries in each chunk, a power of 2 so that an index
+     * splits into a chunk and an offset with a shift and a mask.
+     */
+    private static final int CHUNK_SHIFT = 8;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * Object[][] chunks: The chunks, in order, followed by spare room. A
+     * chunk is only allocated once an entry is added to it.
+     */
+    private Object[][] chunks = new Object[4][];
+
+    /**
+     * int size: The number of entries in the list.
+     */
+    private int size = 0;
+
+    /**
+     * boolean ownsChunks: Whether ~chunks~ itself is this list's own. A copy
+     * shares it until it first changes an entry.
+     * boolean[] owned: Which chunks this list has made its own, or null if
+     * it owns them all.
+     */
+    private boolean ownsChunks = true;
+    private boolean[] owned = null;
+
+    public ChunkedList() {
+    }
+
+    /**
+     * Makes a copy that can be changed without changing this list. The two
+     * share their chunks until the copy changes them, so this list must not
+     * be changed afterwards, but it can go on being read while the copy is.
+     *
+     * @return The copy
+     */
+    public ChunkedList<T> copy() {
+        ChunkedList<T> copy = new ChunkedList<>();
+        copy.chunks = chunks;
+        copy.size = size;
+        copy.ownsChunks = false;
+        copy.owned = new boolean[chunks.length];
+        return copy;
+    }
+
+    /**
+     * Adds an entry to the end of the list.
+     *
+     * @param value The entry to add
+     */
+    public void add(T value) {
+        int chunk = size >>> CHUNK_SHIFT;
+        ownChunks();
+        if (chunk == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunks.length * 2);
+            if (owned != null) {
+                owned = Arrays.copyOf(owned, chunks.length);
+            }
+        }
+        if (chunks[chunk] == null) {
+            chunks[chunk] = new Object[CHUNK_SIZE];
+            if (owned != null) {
+                owned[chunk] = true;
+            }
+        }
+        ownChunk(chunk)[size & CHUNK_MASK] = value;
+        size++;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index
+                    + " out of bounds for length " + size);
+        }
+        return (T) chunks[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    /**
+     * Replaces an entry, cloning its chunk first if it is shared.
+     *
+     * @param index The index of the entry
+     * @param value The new entry
+     */
+    public void set(int index, T value) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index
+                    + " out of bounds for length " + size);
+        }
+        ownChunks();
+        ownChunk(index >>> CHUNK_SHIFT)[index & CHUNK_MASK] = value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Clones the list of chunks if it is shared.
+     */
+    private void ownChunks() {
+        if (!ownsChunks) {
+            chunks = chunks.clone();
+            ownsChunks = true;
+        }
+    }
+
+    /**
+     * @return A chunk this list owns, cloned first if it was shared
+     */
+    private Object[] ownChunk(int chunk) {
+        if (owned != null && !owned[chunk]) {
+            chunks[chunk] = chunks[chunk].clone();
+            owned[chunk] = true;
+        }
+        return chunks[chunk];
+    }
+}
@@ -0,0 +1,258 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+public class CooccurrenceIndex {
+
+    /**
+     * PostingIndex postings: The users who have each item, and each user's
+     * weight for every item they have. It is kept up to date by its owner.
+     */
+    private PostingIndex postings;
+
+    /**
+     * int neighbours: How many neighbours are kept per item.
+     */
+    private int neighbours;
+
+    /**
+     * double[] norms: For each item, the square root of the sum of every
+     * user's weight for it squared.
+     */
+    private double[] norms = new double[0];
+
+    /**
+     * The ids and scores of each item's best neighbours, best first, or null
+     * for an item no user has.
+     */
+    private int[][] neighbourIds = new int[0][];
+    private double[][] neighbourScores = new double[0][];
+
+    /**
+     * Number of items each parallel task builds.
+     */
+    private static final int CHUNK_SIZE = 256;
+
+    /**
+     * Creates an empty index. Call ~build~ to fill it.
+     *
+     * @param postings   The users of each item, and their weights
+     * @param neighbours The number of neighbours to keep per item
+     */
+    public CooccurrenceIndex(PostingIndex postings, int neighbours) {
+        this.postings = postings;
+        this.neighbours = neighbours;
+    }
+
+    public int getNeighbours() {
+        return neighbours;
+    }
+
+    /**
+     * Scores every pair of items that some user has both of, keeping each
+     * item's best neighbours. Two items score the sum, over the users who
+     * have both, of the product of their weights, divided by the items'
+     * norms: the cosine of their columns in the user by item matrix.
+     *
+     * @param items    The number of items
+     * @param executor Executor to build the items on, or null to build them
+     *                 on the calling thread
+     */
+    public synchronized void build(int items, Executor executor) {
+        norms = new double[items];
+        neighbourIds = new int[items][];
+        neighbourScores = new double[items][];
+        for (int item = 0; item < items; item++) {
+            norms[item] = norm(item);
+        }
+
+        if (executor == null) {
+            buildItems(0, items);
+        } else {
+            ArrayList<CompletableFuture<Void>> chunks = new ArrayList<>();
+            for (int start = 0; start < items; start += CHUNK_SIZE) {
+                final int from = start;
+                final int to = Math.min(start + CHUNK_SIZE, items);
+                chunks.add(CompletableFuture.runAsync(() -> buildItems(from,
+                        to), executor));
+            }
+            CompletableFuture.allOf(chunks.toArray(
+                    new CompletableFuture<?>[0])).join();
+        }
+    }
+
+    /**
+     * Rescores the items a user's change can affect, after the postings have
+     * been given the user's new vector. Those are the user's items, whose
+     * norms and pair sums changed, and every item that shares a user with
+     * one of them, since its score against that item used the old norm.
+     *
+     * @param user Index of the user
+     */
+    public synchronized void update(int user) {
+        SparseVector vector = postings.vectors()[user];
+        int items = norms.length;
+        for (int i = 0; i < vector.size(); i++) {
+            items = Math.max(items, vector.getId(i) + 1);
+        }
+        if (items > norms.length) {
+            norms = Arrays.copyOf(norms, items);
+            neighbourIds = Arrays.copyOf(neighbourIds, items);
+            neighbourScores = Arrays.copyOf(neighbourScores, items);
+        }
+
+        for (int i = 0; i < vector.size(); i++) {
+            norms[vector.getId(i)] = norm(vector.getId(i));
+        }
+
+        boolean[] affected = new boolean[items];
+        SparseVector[] vectors = postings.vectors();
+        for (int i = 0; i < vector.size(); i++) {
+            for (int other : postings.users(vector.getId(i))) {
+                SparseVector others = vectors[other];
+                for (int k = 0; k < others.size(); k++) {
+                    affected[others.getId(k)] = true;
+                }
+            }
+        }
+
+        double[] sums = new double[items];
+        IntList touched = new IntList();
+        for (int item = 0; item < items; item++) {
+            if (affected[item]) {
+                buildItem(item, sums, touched);
+            }
+        }
+    }
+
+    /**
+     * Looks up an item's best neighbours.
+     *
+     * @param item The item's id
+     * @return The neighbours' ids, best first
+     */
+    public synchronized int[] neighbourList(int item) {
+        if (item < 0 || item >= neighbourIds.length
+                || neighbourIds[item] == null) {
+            return new int[0];
+        }
+        return neighbourIds[item];
+    }
+
+    /**
+     * Looks up the scores that go with ~neighbourList~.
+     *
+     * @param item The item's id
+     * @return The neighbours' scores, best first
+     */
+    public synchronized double[] neighbourScores(int item) {
+        if (item < 0 || item >= neighbourScores.length
+                || neighbourScores[item] == null) {
+            return new double[0];
+        }
+        return neighbourScores[item];
+    }
+
+    /**
+     * Finds the items that go best with a set of seed items. Each seed's
+     * neighbour list is read once, and an item scores the sum of its scores
+     * against every seed it is a neighbour of.
+     *
+     * @param seeds The seed items' ids
+     * @param count The most items to find
+     * @return The items' ids, best first, not including any seed
+     */
+    public synchronized int[] extend(int[] seeds, int count) {
+        HashMap<Integer, Double> totals = new HashMap<>();
+        for (int seed : seeds) {
+            int[] ids = neighbourList(seed);
+            double[] scores = neighbourScores(seed);
+            for (int i = 0; i < ids.length; i++) {
+                totals.merge(ids[i], scores[i], Double::sum);
+            }
+        }
+        for (int seed : seeds) {
+            totals.remove(seed);
+        }
+
+        NeighbourHeap heap = new NeighbourHeap(Math.max(0, Math.min(count,
+                totals.size())));
+        for (Integer item : totals.keySet()) {
+            heap.offer(item, totals.get(item));
+        }
+        return heap.drainDescending();
+    }
+
+    /**
+     * Builds the neighbour lists of a range of items.
+     */
+    private void buildItems(int from, int to) {
+        double[] sums = new double[norms.length];
+        IntList touched = new IntList();
+        for (int item = from; item < to; item++) {
+            buildItem(item, sums, touched);
+        }
+    }
+
+    /**
+     * Builds one item's neighbour list by adding up, for every user who has
+     * the item, the products of its weight and their other items' weights.
+     *
+     * @param item    The item's id
+     * @param sums    Scratch array of every item, all 0, which is left all 0
+     * @param touched Scratch list, which is left empty
+     */
+    private void buildItem(int item, double[] sums, IntList touched) {
+        SparseVector[] vectors = postings.vectors();
+        boolean found = false;
+
+        for (int user : postings.users(item)) {
+            SparseVector vector = vectors[user];
+            double weight = vector.get(item);
+            if (weight == 0.0) {
+                continue;
+            }
+            found = true;
+            for (int i = 0; i < vector.size(); i++) {
+                int other = vector.getId(i);
+                if (other != item && other < sums.length) {
+                    if (sums[other] == 0.0) {
+                        touched.add(other);
+                    }
+                    sums[other] += weight * vector.getValue(i);
+                }
+            }
+        }
+
+        NeighbourHeap heap = new NeighbourHeap(Math.min(neighbours,
+                touched.size()));
+        for (int i = 0; i < touched.size(); i++) {
+            int other = touched.get(i);
+            // An item listed twice was touched again after a zero product
+            if (sums[other] > 0.0) {
+                heap.offer(other, sums[other] / (norms[item] * norms[other]));
+                sums[other] = 0.0;
+            }
+        }
+        touched.clear();
+
+        double[] scores = new double[heap.size()];
+        neighbourIds[item] = found ? heap.drainDescending(scores) : null;
+        neighbourScores[item] = found ? scores : null;
+    }
+
+    /**
+     * Works out an item's norm from its users' weights.
+     */
+    private double norm(int item) {
+        SparseVector[] vectors = postings.vectors();
+        double sum = 0.0;
+        for (int user : postings.users(item)) {
+            double weight = vectors[user].get(item);
+            sum += weight * weight;
+        }
+        return Math.sqrt(sum);
+    }
+}
@@ -0,0 +1,23 @@
+public interface DataListener {
+
+    /**
+     * Called after ~ReadData.addTrack~ adds a track for a user.
+     *
+     * @param user The user the track was added for
+     */
+    void tracksAdded(String user);
+
+    /**
+     * Called after ~ReadData~ changes the rank or plays of some of a user's
+     * tracks without adding any.
+     *
+     * @param user The user whose tracks changed
+     */
+    void tracksUpdated(String user);
+
+    /**
+     * Called after the whole of ~userTrackMap~ has been replaced, such as
+     * by ~ReadData.readInput~.
+     */
+    void dataReloaded();
+}
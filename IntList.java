@@ -0,0 +1,98 @@
+import java.util.Arrays;
+
+public class IntList {
+
+    /**
+     * int[] values: The values in the list, followed by spare room.
+     */
+    private int[] values;
+
+    /**
+     * int size: The number of values in the list.
+     */
+    private int size = 0;
+
+    public IntList() {
+        this(4);
+    }
+
+    /**
+     * @param capacity The number of values to make room for up front
+     */
+    public IntList(int capacity) {
+        values = new int[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Adds a value to the end of the list.
+     *
+     * @param value The value to add
+     */
+    public void add(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size] = value;
+        size++;
+    }
+
+    /**
+     * Removes one occurrence of a value, moving the last value into its
+     * place, so the order of the list is not kept.
+     *
+     * @param value The value to remove
+     * @return True if the value was in the list
+     */
+    public boolean removeValue(int value) {
+        for (int i = 0; i < size; i++) {
+            if (values[i] == value) {
+                size--;
+                values[i] = values[size];
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index
+                    + " out of bounds for length " + size);
+        }
+        return values[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Makes a list with the same values that shares this list's storage.
+     * Values added to it go past this list's end, so this list can go on
+     * being read while the new one grows, but must not be changed
+     * afterwards. The new list must only be added to, as clearing it or
+     * removing a value would write over this list's values.
+     *
+     * @return The new list
+     */
+    public IntList share() {
+        IntList shared = new IntList(0);
+        shared.values = values;
+        shared.size = size;
+        return shared;
+    }
+
+    /**
+     * Removes every value, keeping the space they used.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return A copy of the values in the list
+     */
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
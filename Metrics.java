@@ -0,0 +1,277 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+public class Metrics implements DynamicMBean {
+
+    /**
+     * The name the shared registry is published under in JMX.
+     */
+    public static final String OBJECT_NAME = "TrackRecommender:type=Metrics";
+
+    /**
+     * Histogram attributes are shown in JMX with these suffixes.
+     */
+    private static final String[] HISTOGRAM_SUFFIXES = {".count", ".meanMicros",
+        ".p50Micros", ".p90Micros", ".p99Micros", ".p999Micros",
+        ".maxMicros"};
+
+    /**
+     * Reports a shared registry that could not be published in JMX.
+     */
+    private static final System.Logger LOGGER = System.getLogger(
+        Metrics.class.getName());
+
+    /**
+     * Metrics defaultMetrics: The registry shared by every ReadData and
+     * TrackRecommender unless they are given their own.
+     */
+    private static Metrics defaultMetrics = null;
+
+    /**
+     * Counters that only go up, gauges that hold the latest value of
+     * something, and latency histograms, all by name.
+     */
+    private ConcurrentHashMap<String, LongAdder> counters =
+        new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, AtomicLong> gauges =
+        new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, LatencyHistogram> histograms =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Returns the shared registry, creating it and publishing it in JMX
+     * under ~OBJECT_NAME~ the first time it is asked for. If it cannot be
+     * published, for instance because something else already holds the
+     * name, that is logged as a warning and the registry is still used, just
+     * without JMX.
+     */
+    public static synchronized Metrics getDefault() {
+        if (defaultMetrics == null) {
+            defaultMetrics = new Metrics();
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    defaultMetrics, new ObjectName(OBJECT_NAME));
+            } catch (JMException e) {
+                LOGGER.log(System.Logger.Level.WARNING, "Could not publish "
+                    + "metrics in JMX as " + OBJECT_NAME, e);
+            }
+        }
+        return defaultMetrics;
+    }
+
+    /**
+     * Finds a counter, creating it at 0 if it does not exist yet.
+     */
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    /**
+     * Finds a gauge, creating it at 0 if it does not exist yet.
+     */
+    public AtomicLong gauge(String name) {
+        return gauges.computeIfAbsent(name, key -> new AtomicLong());
+    }
+
+    /**
+     * Finds a histogram, creating an empty one if it does not exist yet.
+     * Callers on a hot path should keep the histogram rather than looking
+     * it up every time.
+     */
+    public LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    /**
+     * Clears every metric, keeping their names.
+     */
+    public void reset() {
+        for (LongAdder counter : counters.values()) {
+            counter.reset();
+        }
+        for (AtomicLong gauge : gauges.values()) {
+            gauge.set(0);
+        }
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Writes every metric as text, one per line, sorted by name. Histograms
+     * show their count and, in microseconds, their mean, percentiles and
+     * maximum.
+     *
+     * @return The text
+     */
+    public String dump() {
+        StringBuilder text = new StringBuilder();
+        for (String name : new TreeSet<>(counters.keySet())) {
+            text.append(String.format("counter   %s %d%n", name,
+                counters.get(name).sum()));
+        }
+        for (String name : new TreeSet<>(gauges.keySet())) {
+            text.append(String.format("gauge     %s %d%n", name,
+                gauges.get(name).get()));
+        }
+        for (String name : new TreeSet<>(histograms.keySet())) {
+            LatencyHistogram histogram = histograms.get(name);
+            text.append(String.format("histogram %s count=%d mean=%.1fus "
+                + "p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus "
+                + "max=%.1fus%n", name, histogram.getCount(),
+                histogram.getMean() / 1000.0,
+                histogram.getPercentile(50) / 1000.0,
+                histogram.getPercentile(90) / 1000.0,
+                histogram.getPercentile(99) / 1000.0,
+                histogram.getPercentile(99.9) / 1000.0,
+                histogram.getMax() / 1000.0));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Looks up one JMX attribute. Counters and gauges are shown under their
+     * own name, and each histogram as a set of attributes named with the
+     * suffixes in ~HISTOGRAM_SUFFIXES~.
+     */
+    @Override
+    public Object getAttribute(String attribute)
+            throws AttributeNotFoundException {
+        if (attribute.equals("Dump")) {
+            return dump();
+        }
+        if (counters.containsKey(attribute)) {
+            return counters.get(attribute).sum();
+        }
+        if (gauges.containsKey(attribute)) {
+            return gauges.get(attribute).get();
+        }
+
+        int dot = attribute.lastIndexOf('.');
+        LatencyHistogram histogram = dot < 0 ? null
+            : histograms.get(attribute.substring(0, dot));
+        if (histogram != null) {
+            switch (attribute.substring(dot)) {
+                case ".count":
+                    return (double) histogram.getCount();
+                case ".meanMicros":
+                    return histogram.getMean() / 1000.0;
+                case ".p50Micros":
+                    return histogram.getPercentile(50) / 1000.0;
+                case ".p90Micros":
+                    return histogram.getPercentile(90) / 1000.0;
+                case ".p99Micros":
+                    return histogram.getPercentile(99) / 1000.0;
+                case ".p999Micros":
+                    return histogram.getPercentile(99.9) / 1000.0;
+                case ".maxMicros":
+                    return histogram.getMax() / 1000.0;
+                default:
+                    break;
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // Left out, as the JMX contract asks
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Every metric is read only.
+     */
+    @Override
+    public void setAttribute(Attribute attribute)
+            throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName()
+            + " is read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    /**
+     * Runs the "reset" or "dump" operation.
+     *
+     * @throws ReflectionException If there is no operation by that name,
+     *                             wrapping a NoSuchMethodException
+     */
+    @Override
+    public Object invoke(String actionName, Object[] params,
+            String[] signature) throws ReflectionException {
+        if (actionName.equals("reset")) {
+            reset();
+            return null;
+        }
+        if (actionName.equals("dump")) {
+            return dump();
+        }
+        throw new ReflectionException(new NoSuchMethodException(actionName),
+            "Unknown operation: " + actionName);
+    }
+
+    /**
+     * Describes the metrics that exist right now, so new ones show up the
+     * next time a JMX client asks.
+     */
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        ArrayList<MBeanAttributeInfo> attributes = new ArrayList<>();
+        attributes.add(new MBeanAttributeInfo("Dump", "java.lang.String",
+            "Every metric as text", true, false, false));
+        for (String name : new TreeSet<>(counters.keySet())) {
+            attributes.add(new MBeanAttributeInfo(name, "java.lang.Long",
+                "Counter", true, false, false));
+        }
+        for (String name : new TreeSet<>(gauges.keySet())) {
+            attributes.add(new MBeanAttributeInfo(name, "java.lang.Long",
+                "Gauge", true, false, false));
+        }
+        for (String name : new TreeSet<>(histograms.keySet())) {
+            for (String suffix : HISTOGRAM_SUFFIXES) {
+                attributes.add(new MBeanAttributeInfo(name + suffix,
+                    "java.lang.Double", "Latency histogram", true, false,
+                    false));
+            }
+        }
+
+        MBeanOperationInfo[] operations = {
+            new MBeanOperationInfo("reset", "Clears every metric",
+                new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION),
+            new MBeanOperationInfo("dump", "Every metric as text",
+                new MBeanParameterInfo[0], "java.lang.String",
+                MBeanOperationInfo.INFO)
+        };
+
+        return new MBeanInfo(getClass().getName(),
+            "Track recommender metrics",
+            attributes.toArray(new MBeanAttributeInfo[0]), null, operations,
+            null);
+    }
+}
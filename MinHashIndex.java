@@ -0,0 +1,187 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+public class MinHashIndex {
+
+    /**
+     * The Mersenne prime 2^31 - 1, which the hash functions work modulo.
+     */
+    private static final long PRIME = (1L << 31) - 1;
+
+    /**
+     * The number of bands the signature is cut into and the number of
+     * hashes in each band. Two users become candidates when every hash in
+     * at least one band matches, which for users whose sets have a Jaccard
+     * similarity of J happens with probability 1 - (1 - J^rows)^bands.
+     */
+    private int bands;
+    private int rows;
+
+    /**
+     * The a and b of each hash function h(x) = (a * x + b) mod ~PRIME~.
+     */
+    private long[] a;
+    private long[] b;
+
+    /**
+     * The signature of each user, by user index, or null for a user that
+     * has not been added.
+     */
+    private int[][] signatures = new int[0][];
+
+    /**
+     * For each band, the users whose band hashes to each key. When a user's
+     * signature changes they are taken out of their old buckets before they
+     * are put in the new ones, and a bucket that is left empty is dropped.
+     */
+    private ArrayList<HashMap<Long, IntList>> buckets = new ArrayList<>();
+
+    /**
+     * @param bands The number of bands
+     * @param rows  The number of hashes in each band
+     * @param seed  Seed for the hash functions
+     */
+    public MinHashIndex(int bands, int rows, long seed) {
+        if (bands <= 0 || rows <= 0) {
+            throw new IllegalArgumentException("bands and rows must be "
+                    + "positive");
+        }
+        this.bands = bands;
+        this.rows = rows;
+
+        Random random = new Random(seed);
+        a = new long[bands * rows];
+        b = new long[bands * rows];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = 1 + random.nextInt((int) PRIME - 1);
+            b[i] = random.nextInt((int) PRIME);
+        }
+        for (int band = 0; band < bands; band++) {
+            buckets.add(new HashMap<>());
+        }
+    }
+
+    public int getBands() {
+        return bands;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Adds a user, or updates them after their tracks have changed. Only the
+     * distinct values in the vector matter, not how often each appears.
+     *
+     * @param user   Index of the user
+     * @param vector The user's feature vector
+     */
+    public synchronized void put(int user, SparseVector vector) {
+        if (user >= signatures.length) {
+            signatures = Arrays.copyOf(signatures, Math.max(user + 1,
+                    signatures.length * 2));
+        }
+
+        int[] signature = signature(vector);
+        int[] old = signatures[user];
+        if (Arrays.equals(signature, old)) {
+            return;
+        }
+        signatures[user] = signature;
+
+        for (int band = 0; band < bands; band++) {
+            HashMap<Long, IntList> keys = buckets.get(band);
+            if (old != null) {
+                long oldKey = bandKey(old, band);
+                IntList bucket = keys.get(oldKey);
+                bucket.removeValue(user);
+                if (bucket.size() == 0) {
+                    keys.remove(oldKey);
+                }
+            }
+            keys.computeIfAbsent(bandKey(signature, band),
+                    key -> new IntList()).add(user);
+        }
+    }
+
+    /**
+     * Finds the users that share at least one band with a user.
+     *
+     * @param user Index of the user
+     * @return The candidates' indices in increasing order, not including
+     *         the user, or none if the user has not been added
+     */
+    public synchronized int[] candidates(int user) {
+        if (user < 0 || user >= signatures.length
+                || signatures[user] == null) {
+            return new int[0];
+        }
+        int[] signature = signatures[user];
+        IntList found = new IntList();
+
+        for (int band = 0; band < bands; band++) {
+            IntList bucket = buckets.get(band).get(bandKey(signature, band));
+            for (int i = 0; i < bucket.size(); i++) {
+                int other = bucket.get(i);
+                // Skip the user, and users whose band only hashes to the
+                // same key
+                if (other != user && matches(signature, signatures[other],
+                        band)) {
+                    found.add(other);
+                }
+            }
+        }
+
+        // A user found in several bands is only listed once
+        int[] candidates = found.toArray();
+        Arrays.sort(candidates);
+        int size = 0;
+        for (int i = 0; i < candidates.length; i++) {
+            if (size == 0 || candidates[i] != candidates[size - 1]) {
+                candidates[size] = candidates[i];
+                size++;
+            }
+        }
+        return Arrays.copyOf(candidates, size);
+    }
+
+    /**
+     * Works out a MinHash signature: for each hash function, the smallest
+     * hash of any value in the set.
+     */
+    private int[] signature(SparseVector vector) {
+        int[] signature = new int[a.length];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        for (int i = 0; i < vector.size(); i++) {
+            long id = vector.getId(i);
+            for (int h = 0; h < a.length; h++) {
+                int hash = (int) ((a[h] * id + b[h]) % PRIME);
+                if (hash < signature[h]) {
+                    signature[h] = hash;
+                }
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Combines the hashes of one band into the key of its bucket.
+     */
+    private long bandKey(int[] signature, int band) {
+        long key = 1;
+        for (int h = band * rows; h < (band + 1) * rows; h++) {
+            key = key * 1_000_003L + signature[h];
+        }
+        return key;
+    }
+
+    /**
+     * Checks whether two signatures agree on every hash of a band.
+     */
+    private boolean matches(int[] signature, int[] other, int band) {
+        return Arrays.equals(signature, band * rows, (band + 1) * rows,
+                other, band * rows, (band + 1) * rows);
+    }
+}
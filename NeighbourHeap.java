@@ -0,0 +1,146 @@
+public class NeighbourHeap {
+
+    /**
+     * int[] indices: The user index of each neighbour in the heap.
+     */
+    private int[] indices;
+
+    /**
+     * double[] scores: The similarity score of each neighbour in the heap.
+     */
+    private double[] scores;
+
+    /**
+     * int size: The number of neighbours currently in the heap.
+     */
+    private int size = 0;
+
+    /**
+     * Creates a heap that keeps the best ~capacity~ neighbours offered to it.
+     *
+     * @param capacity The most neighbours to keep
+     */
+    public NeighbourHeap(int capacity) {
+        indices = new int[capacity];
+        scores = new double[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Offers a neighbour to the heap. Once the heap is full, the neighbour
+     * replaces the worst one kept so far only if it ranks above it.
+     *
+     * @param index The user index of the neighbour
+     * @param score The neighbour's similarity score
+     */
+    public void offer(int index, double score) {
+        if (size < indices.length) {
+            // Add to the end and move it up to its place
+            indices[size] = index;
+            scores[size] = score;
+            siftUp(size);
+            size++;
+        } else if (size > 0 && ranksBelow(0, index, score)) {
+            // The root is the worst neighbour kept, so replace it
+            indices[0] = index;
+            scores[0] = score;
+            siftDown(0);
+        }
+    }
+
+    /**
+     * Empties the heap.
+     *
+     * @return The user indices that were kept, best neighbour first
+     */
+    public int[] drainDescending() {
+        return drainDescending(null);
+    }
+
+    /**
+     * Empties the heap, also copying out the score of each neighbour.
+     *
+     * @param orderedScores Array of at least ~size()~ entries to write the
+     *                      scores into, or null if they are not needed
+     * @return The user indices that were kept, best neighbour first
+     */
+    public int[] drainDescending(double[] orderedScores) {
+        int[] ordered = new int[size];
+
+        // Removing the root always takes the worst neighbour left, so fill
+        // the array from the back
+        while (size > 0) {
+            ordered[size - 1] = indices[0];
+            if (orderedScores != null) {
+                orderedScores[size - 1] = scores[0];
+            }
+            size--;
+            indices[0] = indices[size];
+            scores[0] = scores[size];
+            siftDown(0);
+        }
+
+        return ordered;
+    }
+
+    /**
+     * Checks whether the neighbour at a position in the heap ranks below
+     * another neighbour. Higher scores rank first, and equal scores are
+     * broken in favour of the lower user index.
+     *
+     * @param position Position in the heap
+     * @param index    User index of the other neighbour
+     * @param score    Score of the other neighbour
+     * @return True if the neighbour at ~position~ ranks below the other one
+     */
+    private boolean ranksBelow(int position, int index, double score) {
+        if (scores[position] != score) {
+            return scores[position] < score;
+        }
+        return indices[position] > index;
+    }
+
+    private void siftUp(int position) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (!ranksBelow(position, indices[parent], scores[parent])) {
+                break;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown(int position) {
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= size) {
+                break;
+            }
+
+            // Pick the worse of the two children
+            if (child + 1 < size
+                    && ranksBelow(child + 1, indices[child], scores[child])) {
+                child++;
+            }
+            if (!ranksBelow(child, indices[position], scores[position])) {
+                break;
+            }
+            swap(position, child);
+            position = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int index = indices[a];
+        indices[a] = indices[b];
+        indices[b] = index;
+
+        double score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+    }
+}
@@ -0,0 +1,67 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Allocates the native memory that precomputed similarity stores are kept
+ * in off the heap. The only implementation uses the JDK foreign memory API,
+ * so that each block is freed as soon as it is closed.
+ */
+public interface OffHeapAllocator {
+
+    /**
+     * The name of the allocator that uses the JDK foreign memory API. It is
+     * built from foreign/ForeignOffHeapAllocator.java, which needs the
+     * jdk.incubator.foreign module to compile and run.
+     */
+    String FOREIGN_ALLOCATOR = "ForeignOffHeapAllocator";
+
+    /**
+     * A block of native memory. The garbage collector only ever sees the
+     * small objects that point at it, never the values it holds.
+     */
+    interface Block extends AutoCloseable {
+
+        /**
+         * @return A buffer over the whole block, in the platform's byte
+         *         order, that starts out filled with zeros
+         */
+        ByteBuffer buffer();
+
+        /**
+         * Frees the block straight away. The buffer must not be used again,
+         * by any thread. A block that is never closed is freed once it can
+         * no longer be reached.
+         */
+        @Override
+        void close();
+    }
+
+    /**
+     * Allocates a block of native memory.
+     *
+     * @param bytes The size of the block. A block is one buffer, so memory
+     *              beyond what an int can count has to be split over
+     *              several blocks, as ~SegmentedBuffer~ does.
+     * @return The block
+     */
+    Block allocate(int bytes);
+
+    /**
+     * Loads the foreign memory allocator. It has to have been compiled and
+     * the JVM started with --add-modules jdk.incubator.foreign.
+     *
+     * @return The allocator
+     * @throws UnsupportedOperationException If the allocator has not been
+     *                                       compiled or the module is not
+     *                                       there
+     */
+    static OffHeapAllocator load() {
+        try {
+            return (OffHeapAllocator) Class.forName(FOREIGN_ALLOCATOR)
+                .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw new UnsupportedOperationException("Off-heap stores need "
+                    + FOREIGN_ALLOCATOR + " and the jdk.incubator.foreign"
+                    + " module", e);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class PlaylistService implements AutoCloseable {
+
+    /**
+     * TrackRecommender recommender: Makes the playlists. It is safe to call
+     * from many threads at once, so requests are never run one at a time
+     * behind a lock.
+     */
+    private TrackRecommender recommender;
+
+    /**
+     * The threads playlists are made on, which take requests from a bounded
+     * queue. A request that arrives when every thread is busy and the queue
+     * is full is turned away rather than waited for.
+     */
+    private ThreadPoolExecutor pool;
+
+    /**
+     * The playlists being made or waiting to be made, by request. A request
+     * that matches one of these shares its result instead of making the
+     * same playlist again.
+     */
+    private ConcurrentHashMap<String, CompletableFuture<ArrayList<TrackInfo>>>
+            inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * The metrics the service records, looked up once in the recommender's
+     * ~Metrics~ when the service is made rather than by name per request:
+     * how long requests wait for a thread, how many are submitted, share
+     * another's result or are turned away, and how many are in flight.
+     */
+    private final LatencyHistogram queueWait;
+    private final LongAdder submitted;
+    private final LongAdder coalesced;
+    private final LongAdder rejected;
+    private final AtomicLong inFlightCount;
+
+    /**
+     * @param recommender   The recommender to make playlists with
+     * @param threads       The number of playlists made at once
+     * @param queueCapacity The most requests that can wait for a thread
+     */
+    public PlaylistService(TrackRecommender recommender, int threads,
+            int queueCapacity) {
+        if (threads <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("threads and queueCapacity "
+                    + "must be positive");
+        }
+        this.recommender = recommender;
+
+        Metrics metrics = recommender.getMetrics();
+        queueWait = metrics.histogram("playlistService.queueWait");
+        submitted = metrics.counter("playlistService.submitted");
+        coalesced = metrics.counter("playlistService.coalesced");
+        rejected = metrics.counter("playlistService.rejected");
+        inFlightCount = metrics.gauge("playlistService.inFlight");
+
+        AtomicInteger count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "playlist-"
+                            + count.incrementAndGet());
+                    // Do not keep the program running once main returns
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Makes a playlist in the same way as ~TrackRecommender.makePlaylist~
+     * without blocking the caller.
+     *
+     * If the same playlist has already been asked for and is not ready yet,
+     * the caller shares that request's result instead of starting another.
+     * Requests are only the same if ~TrackRecommender.isWeightedPlaylists~
+     * was the same when they were made. The playlist can then have been
+     * started before data that was added after the request, as it could
+     * when a request is slow to start.
+     *
+     * @param user           The user
+     * @param fieldName      The field to base the similarity off of
+     * @param method         The method to calculate similarity
+     * @param numberOfTracks The total number of tracks
+     * @return The playlist once it is ready, which is the caller's own copy.
+     *         It completes with a RejectedExecutionException straight away
+     *         if the queue is full or the service has been closed, and with
+     *         whatever ~makePlaylist~ threw if that fails.
+     */
+    public CompletableFuture<ArrayList<TrackInfo>> makePlaylistAsync(
+            String user, String fieldName, String method,
+            int numberOfTracks) {
+        String key;
+        try {
+            key = recommender.similarityKey(fieldName, method) + "/" + user
+                    + "/" + numberOfTracks + "/"
+                    + (recommender.isWeightedPlaylists() ? "weighted"
+                            : "unweighted");
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        CompletableFuture<ArrayList<TrackInfo>> playlist =
+                new CompletableFuture<>();
+        CompletableFuture<ArrayList<TrackInfo>> shared = inFlight.putIfAbsent(
+                key, playlist);
+        if (shared != null) {
+            coalesced.increment();
+            return shared.thenApply(ArrayList::new);
+        }
+
+        long queued = System.nanoTime();
+        try {
+            pool.execute(() -> {
+                queueWait.record(System.nanoTime() - queued);
+                ArrayList<TrackInfo> result = null;
+                Throwable failure = null;
+                try {
+                    result = recommender.makePlaylist(user, fieldName, method,
+                            numberOfTracks);
+                } catch (Throwable e) {
+                    failure = e;
+                }
+                // Later requests start a new playlist from here on
+                inFlight.remove(key, playlist);
+                inFlightCount.set(inFlight.size());
+                if (failure == null) {
+                    playlist.complete(result);
+                } else {
+                    playlist.completeExceptionally(failure);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key, playlist);
+            rejected.increment();
+            playlist.completeExceptionally(new RejectedExecutionException(
+                    "Too many playlist requests are waiting", e));
+            return playlist;
+        }
+
+        submitted.increment();
+        inFlightCount.set(inFlight.size());
+        return playlist.thenApply(ArrayList::new);
+    }
+
+    /**
+     * @return The number of different playlists being made or waiting to be
+     *         made
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    /**
+     * @return The number of requests waiting for a thread
+     */
+    public int getQueued() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * Stops taking requests. Playlists already asked for are still made.
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+}
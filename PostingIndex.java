@@ -0,0 +1,160 @@
+import java.util.Arrays;
+
+public class PostingIndex {
+
+    /**
+     * Each user's feature vector, by user index, or null for a user that has
+     * not been added. A new array is published every time a vector changes,
+     * so readers can use the array they were given without locking.
+     */
+    private volatile SparseVector[] vectors = new SparseVector[0];
+
+    /**
+     * For each id, the users whose vector has had a value for it, in the
+     * order they were added. A user is never removed, so a list can hold a
+     * user who no longer has the id; that only costs one extra full score.
+     * Null until the postings are first read, so that a feature only ever
+     * scored with a metric that compares every pair in full only keeps the
+     * vectors.
+     */
+    private IntList[] postings = null;
+
+    /**
+     * Indexes every user at once. The posting lists are built from the
+     * vectors the first time they are read.
+     *
+     * @param vectors Each user's feature vector, by user index. The index
+     *                keeps the array, which must not be changed afterwards.
+     */
+    public PostingIndex(SparseVector[] vectors) {
+        this.vectors = vectors;
+    }
+
+    /**
+     * Builds the posting lists from the current vectors, if they have not
+     * been built yet.
+     */
+    private void buildPostings() {
+        if (postings != null) {
+            return;
+        }
+
+        int ids = 0;
+        for (SparseVector vector : vectors) {
+            if (vector != null && vector.size() > 0) {
+                ids = Math.max(ids, vector.getId(vector.size() - 1) + 1);
+            }
+        }
+
+        postings = new IntList[ids];
+        for (int user = 0; user < vectors.length; user++) {
+            SparseVector vector = vectors[user];
+            for (int i = 0; vector != null && i < vector.size(); i++) {
+                if (postings[vector.getId(i)] == null) {
+                    postings[vector.getId(i)] = new IntList();
+                }
+                postings[vector.getId(i)].add(user);
+            }
+        }
+    }
+
+    /**
+     * Adds a user, or replaces their vector after their tracks have changed.
+     *
+     * @param user   Index of the user
+     * @param vector The user's feature vector
+     */
+    public synchronized void put(int user, SparseVector vector) {
+        SparseVector[] updated = Arrays.copyOf(vectors, Math.max(user + 1,
+                vectors.length));
+        SparseVector old = updated[user];
+        updated[user] = vector;
+        if (postings == null) {
+            vectors = updated;
+            return;
+        }
+
+        // The old and new ids are both sorted, so walk them together to find
+        // the ids the user did not have before
+        int j = 0;
+        for (int i = 0; i < vector.size(); i++) {
+            int id = vector.getId(i);
+            while (old != null && j < old.size() && old.getId(j) < id) {
+                j++;
+            }
+            if (old != null && j < old.size() && old.getId(j) == id) {
+                continue;
+            }
+
+            if (id >= postings.length) {
+                postings = Arrays.copyOf(postings, Math.max(id + 1,
+                        postings.length * 2));
+            }
+            if (postings[id] == null) {
+                postings[id] = new IntList();
+            }
+            postings[id].add(user);
+        }
+
+        vectors = updated;
+    }
+
+    /**
+     * @return Every user's vector, by user index. The array belongs to the
+     *         index and must not be changed, but it is never changed by the
+     *         index either.
+     */
+    public SparseVector[] vectors() {
+        return vectors;
+    }
+
+    /**
+     * Looks up the posting list of one id.
+     *
+     * @param id The id
+     * @return The users who have had a value for the id, in the order they
+     *         were added
+     */
+    public synchronized int[] users(int id) {
+        buildPostings();
+        if (id >= postings.length || postings[id] == null) {
+            return new int[0];
+        }
+        return postings[id].toArray();
+    }
+
+    /**
+     * Finds the users who share at least one id with a vector, by reading
+     * the postings of its ids. Every other user has nothing in common with
+     * it.
+     *
+     * @param vector The vector
+     * @return The users' indices in increasing order, which may include the
+     *         vector's own user
+     */
+    public synchronized int[] overlapping(SparseVector vector) {
+        buildPostings();
+        IntList found = new IntList();
+        for (int i = 0; i < vector.size(); i++) {
+            int id = vector.getId(i);
+            if (id < postings.length && postings[id] != null) {
+                IntList posting = postings[id];
+                for (int k = 0; k < posting.size(); k++) {
+                    found.add(posting.get(k));
+                }
+            }
+        }
+
+        // A user who shares several ids is found several times
+        int[] users = found.toArray();
+        Arrays.sort(users);
+        int size = 0;
+        for (int i = 0; i < users.length; i++) {
+            if (size == 0 || users[i] != users[size - 1]) {
+                users[size] = users[i];
+                size++;
+            }
+        }
+        return Arrays.copyOf(users, size);
+    }
+}
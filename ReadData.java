@@ -1,30 +1,230 @@
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class ReadData {
 
-    private HashMap<String, ArrayList<TrackInfo>> userTrackMap;
-    private ArrayList<String> usernames;
+    /**
+     * TrackDataset dataset: Every track and the indexes over them. A dataset
+     * never changes once it has been swapped in. A load fills a new one out
+     * of sight, and adding or changing tracks fills a copy of the current
+     * one, which is swapped in once it is done. A reader that takes the
+     * dataset once sees one version of the data, and never a file that is
+     * half read or a track that is half added.
+     */
+    private volatile TrackDataset dataset = new TrackDataset();
+
+    /**
+     * UserTrackMap userTrackMap: The HashMap view of the last version of the
+     * data one was asked for.
+     */
+    private volatile UserTrackMap userTrackMap;
+
+    /**
+     * A HashMap view of one version of the data. Nothing changes it once it
+     * has been built, so it goes on describing that version after tracks
+     * are added.
+     */
+    private static class UserTrackMap
+            extends HashMap<String, ArrayList<TrackInfo>> {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The ReadData that built the view, and the version it describes.
+         */
+        private final transient ReadData owner;
+        private final transient TrackDataset dataset;
+
+        UserTrackMap(ReadData owner, TrackDataset dataset) {
+            super(dataset.getUsernames().size() * 4 / 3 + 1);
+            this.owner = owner;
+            this.dataset = dataset;
+
+            TrackStore store = dataset.getStore();
+            Vocabulary users = store.getUsers();
+            for (int i = 0; i < users.size(); i++) {
+                put(users.get(i), store.tracks(i));
+            }
+        }
+    }
+
+    /**
+     * Listeners that are told whenever ~userTrackMap~ changes, so anything
+     * derived from it can be kept up to date.
+     */
+    private CopyOnWriteArrayList<DataListener> listeners =
+        new CopyOnWriteArrayList<>();
 
+    /**
+     * The number of rows the last call to ~readInput~ could not read.
+     */
+    private long skippedRows = 0;
+
+    /**
+     * Metrics metrics: Where load times, row counts and parse errors are
+     * recorded.
+     */
+    private volatile Metrics metrics = Metrics.getDefault();
+
+    /**
+     * Returns every user's tracks as a HashMap, as they are now. The map is
+     * built from the store the first time it is asked for after the data
+     * changes, so code that only needs a few users' tracks should use
+     * ~getStore()~ instead. Tracks added later are not in it.
+     */
     public HashMap<String, ArrayList<TrackInfo>> getUserTrackMap() {
-        return userTrackMap;
+        TrackDataset current = dataset;
+        UserTrackMap view = userTrackMap;
+        if (view == null || view.dataset != current) {
+            view = new UserTrackMap(this, current);
+            userTrackMap = view;
+        }
+        return view;
+    }
+
+    /**
+     * @return Every user, by id, as they are now. The list cannot be
+     *         changed, and users added later are not in it.
+     */
+    public List<String> getUsernames() {
+        return dataset.getUsernames();
     }
 
-    public ArrayList<String> getUsernames() {
-        return usernames;
+    /**
+     * Looks up a user's id, which is their index in ~getUsernames()~.
+     *
+     * @param user The username
+     * @return The user's id, or -1 if there is no such user
+     */
+    public int getUserId(String user) {
+        return dataset.getUserId(user);
     }
 
-    public void setUserTrackMap(HashMap<String, ArrayList<TrackInfo>> value) {
-        this.userTrackMap = value;
+    public TrackStore getStore() {
+        return dataset.getStore();
+    }
+
+    /**
+     * @return The current version of the data. Code that reads it more than
+     *         once should take it once and keep using it, as a reload swaps
+     *         in a different one.
+     */
+    public TrackDataset getDataset() {
+        return dataset;
+    }
+
+    public long getSkippedRows() {
+        return skippedRows;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void addListener(DataListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(DataListener listener) {
+        listeners.remove(listener);
+    }
+
+    public Vocabulary getTitles() {
+        return dataset.getTitles();
+    }
+
+    public Vocabulary getArtists() {
+        return dataset.getArtists();
+    }
+
+    public Vocabulary getGenres() {
+        return dataset.getGenres();
+    }
+
+    /**
+     * Replaces every track with the tracks in a map. The map is copied, so
+     * changing it afterwards does not change the data.
+     *
+     * @param value The tracks of each user
+     */
+    public synchronized void setUserTrackMap(
+            HashMap<String, ArrayList<TrackInfo>> value) {
+        TrackDataset next = new TrackDataset();
+
+        // Build the new store from the map.
+        // Users we already knew keep their order and come first.
+        if (value != null) {
+            for (String user : dataset.getUsernames()) {
+                if (value.containsKey(user)) {
+                    copyTracks(next, user, value.get(user));
+                }
+            }
+            for (String user : value.keySet()) {
+                if (next.getUserId(user) < 0) {
+                    copyTracks(next, user, value.get(user));
+                }
+            }
+        }
+
+        publish(next, skippedRows);
+    }
+
+    /**
+     * Copies a user's tracks from a map into a dataset.
+     *
+     * @param next   The dataset
+     * @param user   The user
+     * @param tracks The user's tracks
+     */
+    private static void copyTracks(TrackDataset next, String user,
+            ArrayList<TrackInfo> tracks) {
+        for (TrackInfo track : tracks) {
+            next.add(user, track.getRank(), track.getTitle(),
+                track.getArtist(), track.getAlbum(), track.getGenre(),
+                track.getPlays());
+        }
+    }
+
+    /**
+     * Swaps in a dataset that has been filled, then tells the listeners.
+     * Loads hold the lock from before they start reading until the listeners
+     * have caught up, so anything adding tracks during a load waits for it
+     * and adds them to the new dataset; readers never wait.
+     *
+     * @param next    The new dataset
+     * @param skipped The number of rows that could not be read into it
+     */
+    private synchronized void publish(TrackDataset next, long skipped) {
+        dataset = next;
+        skippedRows = skipped;
+
+        for (DataListener listener : listeners) {
+            listener.dataReloaded();
+        }
     }
 
     /**
      * This method adds a track to a Java Collections HashMap that associates
-     * users to a list of tracks.
+     * users to a list of tracks. When the map is one ~getUserTrackMap()~
+     * returned, the track is added to the store like ~addTrack~ without a
+     * map, and the map itself is left as it is.
      *
      * @param map    A HashMap to insert a new track into
      * @param user   A string user name
@@ -39,6 +239,12 @@ public class ReadData {
             int rank, String title, String artist, String album,
             String genre, int plays) {
 
+        // Our own maps are only views of the store
+        if (map instanceof UserTrackMap && ((UserTrackMap) map).owner == this) {
+            addTrack(user, rank, title, artist, album, genre, plays);
+            return;
+        }
+
         // If the user has no saved tracks, create a new ArrayList to store
         // their tracks; else, add to the existing ArrayList
         if (map.get(user) == null) {
@@ -57,103 +263,405 @@ public class ReadData {
     }
 
     /**
-     * Given a filename read in all tracks from the file into the ~userTrackMap~
-     * HashMap. Use the ~addTrack~ method above.
+     * Adds a track to the store, which also records the user in the registry
+     * and the track in the vocabularies and indexes. The track is added to a
+     * copy of the data, which then replaces it.
+     *
+     * @param user   A string user name
+     * @param rank   The rank of the track for this user
+     * @param title  The title of the track
+     * @param artist The artist's name who made the track
+     * @param album  The album number for the track
+     * @param genre  The genre of the track
+     * @param plays  The number of times the user played the track
+     */
+    public synchronized void addTrack(String user, int rank, String title,
+            String artist, String album, String genre, int plays) {
+
+        TrackDataset next = dataset.copy();
+        next.add(user, rank, title, artist, album, genre, plays);
+        dataset = next;
+
+        for (DataListener listener : listeners) {
+            listener.tracksAdded(user);
+        }
+
+    }
+
+    /**
+     * Reads a file of new listening data, in the same format as the files
+     * read by ~readInput~, on top of the tracks already loaded. A row for a
+     * track the user already has (the same user and title) updates that
+     * track's rank and plays; any other row is added as a new track. Rows
+     * that cannot be read are skipped and counted in ~getSkippedRows~.
+     *
+     * Listeners are told once per user whose tracks changed, after the whole
+     * file is in, so only those users are rescored. A file that cannot be
+     * read to the end changes nothing.
      *
      * @param filename The file name to read data from.
      */
-    public void readInput(String filename) {
-
-        userTrackMap = new HashMap<>();
-        usernames = new ArrayList<>();
-
-        String user;
-        int rank;
-        String title;
-        String artist;
-        String album;
-        String genre;
-        int plays;
-
-        String line;
-        String delimiter = ";";
-
-        try (BufferedReader fileReader = new BufferedReader(new FileReader
-            (filename))) {
-
-            fileReader.readLine();
-            while ((line = fileReader.readLine()) != null) {
-                // Split the line by the delimiter
-                String[] elements = line.split(delimiter);
-
-                // Set each variable equal to the corresponding index within
-                // the line of the CSV file
-                user = elements[0];
-                rank = Integer.parseInt(elements[1]);
-                title = elements[2];
-                artist = elements[3];
-
-                // Column 6 is lowercase, so must look at column 7
-                genre = elements[5];
-                album = elements[6];
-                plays = Integer.parseInt(elements[7]);
-
-                // Add the username to the list of usernames, but avoid
-                // duplicates
-                if (!usernames.contains(user)) {
-                    usernames.add(user);
+    public synchronized void readDelta(String filename) {
+
+        Delta delta = new Delta();
+        TrackCsvParser parser = new TrackCsvParser();
+
+        try {
+            parser.parse(filename, delta::row);
+            skippedRows = parser.getSkippedRows();
+            delta.publish();
+
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Adds or updates a batch of tracks on top of the tracks already loaded,
+     * in the same way as ~readDelta~. If going through the batch throws,
+     * none of it is added.
+     *
+     * @param tracks The tracks to add or update
+     */
+    public synchronized void ingest(Iterable<TrackInfo> tracks) {
+
+        Delta delta = new Delta();
+        for (TrackInfo track : tracks) {
+            delta.row(track.getUser(), track.getRank(), track.getTitle(),
+                track.getArtist(), track.getAlbum(), track.getGenre(),
+                track.getPlays());
+        }
+        delta.publish();
+
+    }
+
+    /**
+     * Applies the rows of one delta and remembers which users they touched.
+     */
+    private class Delta {
+
+        /**
+         * TrackDataset next: The copy of the data the batch is read into,
+         * which replaces the current data once the batch is done.
+         */
+        private final TrackDataset next = dataset.copy();
+
+        /**
+         * Users who were given new tracks, and users who only had tracks
+         * updated, in the order they were first touched.
+         */
+        private LinkedHashSet<String> added = new LinkedHashSet<>();
+        private LinkedHashSet<String> updated = new LinkedHashSet<>();
+
+        void row(String user, int rank, String title, String artist,
+                String album, String genre, int plays) {
+
+            TrackStore store = next.getStore();
+            int userId = store.getUsers().indexOf(user);
+            int titleId = store.getTitles().indexOf(title);
+            int row = userId < 0 || titleId < 0 ? -1
+                : store.find(userId, titleId);
+
+            if (row < 0) {
+                next.add(user, rank, title, artist, album, genre, plays);
+                added.add(user);
+                return;
+            }
+
+            store.setRank(row, rank);
+            store.setPlays(row, plays);
+            updated.add(user);
+
+        }
+
+        /**
+         * Swaps in the data the batch was read into and tells the listeners
+         * which users changed.
+         */
+        void publish() {
+            dataset = next;
+            updated.removeAll(added);
+            for (DataListener listener : listeners) {
+                for (String user : added) {
+                    listener.tracksAdded(user);
+                }
+                for (String user : updated) {
+                    listener.tracksUpdated(user);
                 }
+            }
+        }
+    }
+
+    /**
+     * Given a filename read in all tracks from the file into the track
+     * store. Use the ~addTrack~ method above. Rows that do not have 8
+     * columns or whose rank or plays are not whole numbers are skipped and
+     * counted in ~getSkippedRows~. The tracks are read into a new dataset,
+     * which replaces the old one only once the whole file is in. If the
+     * file cannot be read to the end, the old data is kept.
+     *
+     * @param filename The file name to read data from.
+     */
+    public synchronized void readInput(String filename) {
 
-                // Add the track to the TrackMap
-                addTrack(userTrackMap, user, rank, title, artist, album, genre, 
-                    plays);
+        long start = System.nanoTime();
+        TrackDataset next = new TrackDataset();
+        TrackCsvParser parser = new TrackCsvParser();
+        boolean complete = false;
 
+        try {
+            parser.parse(filename, next::add);
+            complete = true;
+            publish(next, parser.getSkippedRows());
+
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            recordLoad("readInput", next, parser.getSkippedRows(), start,
+                complete);
+        }
+
+    }
+
+    /**
+     * Reads in all tracks from a file like ~readInput(String)~, on an
+     * executor. Until the file is in, everyone keeps reading the old data.
+     *
+     * @param filename The file name to read data from.
+     * @param executor The executor to read the file on
+     * @return A future that completes once the new data has replaced the
+     *         old
+     */
+    public CompletableFuture<Void> readInputAsync(String filename,
+            Executor executor) {
+        return CompletableFuture.runAsync(() -> readInput(filename),
+            executor);
+    }
+
+    /**
+     * Reads in all tracks from a file like ~readInput(String)~, but splits
+     * the file into chunks at line boundaries and parses the chunks on
+     * several threads. The chunks are added to ~userTrackMap~ in file order,
+     * so users and their tracks end up in exactly the same order as when the
+     * file is read on one thread.
+     *
+     * @param filename The file name to read data from.
+     * @param threads  The number of threads to parse with
+     */
+    public synchronized void readInput(String filename, int threads) {
+
+        if (threads <= 1) {
+            readInput(filename);
+            return;
+        }
+
+        long start = System.nanoTime();
+        TrackDataset next = new TrackDataset();
+        long skipped = 0;
+        boolean complete = false;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+
+        try (FileInputStream input = new FileInputStream(filename);
+                FileChannel channel = input.getChannel()) {
+
+            long[] bounds = TrackCsvParser.split(channel, threads);
+            ArrayList<Future<TrackRowBuffer>> chunks = new ArrayList<>();
+
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                final long from = bounds[i];
+                final long to = bounds[i + 1];
+                final boolean header = i == 0;
+                chunks.add(pool.submit(() -> {
+                    TrackCsvParser parser = new TrackCsvParser();
+                    TrackRowBuffer rows = new TrackRowBuffer();
+                    parser.parse(channel, from, to, header, rows);
+                    rows.setSkippedRows(parser.getSkippedRows());
+                    return rows;
+                }));
             }
 
+            // Add each chunk as soon as it and every chunk before it are
+            // parsed, while the later chunks are still being worked on
+            for (Future<TrackRowBuffer> chunk : chunks) {
+                TrackRowBuffer rows = chunk.get();
+                rows.replay(next::add);
+                skipped += rows.getSkippedRows();
+            }
+            complete = true;
+            publish(next, skipped);
+
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            e.printStackTrace();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            e.getCause().printStackTrace();
+        } finally {
+            pool.shutdownNow();
+            recordLoad("readInput", next, skipped, start, complete);
+        }
+
+    }
+
+    /**
+     * Reads in all tracks from the snapshot kept next to a track file if
+     * there is a valid one, and from the track file itself otherwise. After
+     * reading the track file a snapshot of it is written, so that the next
+     * load can skip parsing it.
+     *
+     * @param filename The file name to read data from.
+     */
+    public synchronized void loadInput(String filename) {
+
+        // Note the file before reading it, so a change made while it is
+        // being read makes the snapshot stale rather than wrong
+        File source = new File(filename);
+        long size = source.length();
+        long modified = source.lastModified();
+
+        if (readSnapshot(filename)) {
+            return;
+        }
+
+        readInput(filename);
+
+        if (source.isFile()) {
+            try {
+                writeSnapshot(TrackSnapshot.path(filename), size, modified);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
 
     }
 
+    /**
+     * Reads in all tracks from the snapshot of a track file, made by
+     * ~loadInput~. Nothing is read if the snapshot is missing, damaged, or
+     * older than the track file, and the old data is kept.
+     *
+     * @param filename The track file the snapshot was made from
+     * @return True if the snapshot was read
+     */
+    public synchronized boolean readSnapshot(String filename) {
+
+        long start = System.nanoTime();
+        TrackDataset next = new TrackDataset();
+        boolean read = TrackSnapshot.read(TrackSnapshot.path(filename),
+            filename, next.getStore(), next.getIndex()::add);
+
+        // Whatever part of a bad snapshot was read is never seen
+        if (read) {
+            publish(next, 0);
+            recordLoad("readSnapshot", next, 0, start, true);
+        }
+        return read;
+
+    }
+
+    /**
+     * Writes every track to a snapshot file.
+     *
+     * @param filename   The snapshot file to write
+     * @param sourceSize The size of the track file the tracks were read from
+     * @param sourceMod  The modified time of that track file
+     * @throws IOException If the snapshot cannot be written
+     */
+    public synchronized void writeSnapshot(String filename, long sourceSize,
+            long sourceMod) throws IOException {
+        TrackSnapshot.write(dataset.getStore(), filename, sourceSize,
+            sourceMod);
+    }
+
+    /**
+     * Records how long a load took, how many rows it read and how many it
+     * could not read, or only that it failed.
+     *
+     * @param name     The name of the load's metrics
+     * @param read     The dataset the load read
+     * @param skipped  The number of rows the load could not read
+     * @param start    ~System.nanoTime()~ when the load started
+     * @param complete False if the load failed and its data was dropped
+     */
+    private void recordLoad(String name, TrackDataset read, long skipped,
+            long start, boolean complete) {
+        if (!complete) {
+            metrics.counter(name + ".failures").increment();
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        int rows = read.getStore().size();
+        metrics.histogram(name).record(elapsed);
+        metrics.counter(name + ".rows").add(rows);
+        metrics.counter(name + ".skippedRows").add(skipped);
+        metrics.gauge(name + ".rowsPerSecond").set(
+            (long) (rows * 1e9 / Math.max(elapsed, 1)));
+    }
+
     /**
      * Generate a list of all artists associated with a given genre in
-     * ~userTrackMap~
+     * ~userTrackMap~. The artists are read from an index, in the order they
+     * are first found when walking each user's tracks in turn.
      *
      * @param genre The genre to generate a list for
      */
     public ArrayList<String> listGenreArtists(String genre) {
 
         // Avoid issues related to differences in formatting
-        genre = genre.toUpperCase();
-
-        // Create new ArrayList to store data
-        ArrayList<String> artists = new ArrayList<>();
-        String currentArtist;
-        String currentGenre;
-
-        for (int i = 0; i < userTrackMap.size(); i++) {
-            for (int j = 0; j < userTrackMap.get(usernames.get(i)).size(); j++) 
-                {
-                // Set genre and artist for this iteration
-                currentGenre = userTrackMap.get(usernames.get(i)).get(j).
-                getGenre();
-                currentArtist = userTrackMap.get(usernames.get(i)).get(j).
-                getArtist();
-
-                // If the genre matches the one you're looking for
-                if (currentGenre.equals(genre)) {
-                    // If the list doesn't already contain this artist
-                    if (!artists.contains(currentArtist)) {
-                        artists.add(currentArtist);
-                    }
-                }
-            }
-        }
+        return dataset.getIndex().genreArtists(genre.toUpperCase());
+    }
+
+    /**
+     * Generate a list of every track by an artist in ~userTrackMap~, in the
+     * order the tracks were added.
+     *
+     * @param artist The artist to generate a list for
+     */
+    public ArrayList<TrackInfo> listArtistTracks(String artist) {
+        return dataset.getIndex().artistTracks(artist);
+    }
+
+    /**
+     * Generate a list of every track with a title in ~userTrackMap~, in the
+     * order the tracks were added.
+     *
+     * @param title The title to generate a list for
+     */
+    public ArrayList<TrackInfo> listTitleTracks(String title) {
+        return dataset.getIndex().titleTracks(title);
+    }
+
+    /**
+     * Finds the first track added with a title, without listing the rest.
+     *
+     * @param titleId The title's id in ~getTitles()~
+     * @return The track, or null if no track has the title
+     */
+    public TrackInfo firstTitleTrack(int titleId) {
+        return dataset.firstTitleTrack(titleId);
+    }
 
-        return artists;
+    /**
+     * Generate a list of every track in a genre in ~userTrackMap~, in the
+     * order the tracks were added.
+     *
+     * @param genre The genre to generate a list for
+     */
+    public ArrayList<TrackInfo> listGenreTracks(String genre) {
+
+        // Avoid issues related to differences in formatting
+        return dataset.getIndex().genreTracks(genre.toUpperCase());
     }
 
     public static void main(String[] args) {
@@ -161,13 +669,13 @@ public class ReadData {
         // Do your testing here!
 
         rd.readInput("cs1122-2025.csv");
-        System.out.println("Method completed. Map size = " + rd.userTrackMap.
-        size());
+        System.out.println("Method completed. Map size = " + rd.
+        getUserTrackMap().size());
 
-        System.out.println("Album: " + rd.userTrackMap.get("EzI6psdcyE").
+        System.out.println("Album: " + rd.getUserTrackMap().get("EzI6psdcyE").
         get(0).getAlbum());
 
-        System.out.println("Array size: " + rd.usernames.size());
+        System.out.println("Array size: " + rd.getUsernames().size());
 
         System.out.println(rd.listGenreArtists("metal"));
 
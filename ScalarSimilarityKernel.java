@@ -0,0 +1,114 @@
+public class ScalarSimilarityKernel implements SimilarityKernel {
+
+    @Override
+    public double squaredDistance(double[] x, double[] y) {
+        checkLengths(x.length, y.length);
+
+        // Four sums, so each addition does not wait for the one before it
+        double sum0 = 0.0, sum1 = 0.0, sum2 = 0.0, sum3 = 0.0;
+        int i = 0;
+        for (; i + 3 < x.length; i += 4) {
+            double d0 = x[i] - y[i];
+            double d1 = x[i + 1] - y[i + 1];
+            double d2 = x[i + 2] - y[i + 2];
+            double d3 = x[i + 3] - y[i + 3];
+            sum0 += d0 * d0;
+            sum1 += d1 * d1;
+            sum2 += d2 * d2;
+            sum3 += d3 * d3;
+        }
+        for (; i < x.length; i++) {
+            double d = x[i] - y[i];
+            sum0 += d * d;
+        }
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    @Override
+    public double squaredDistance(float[] x, float[] y) {
+        checkLengths(x.length, y.length);
+
+        double sum0 = 0.0, sum1 = 0.0, sum2 = 0.0, sum3 = 0.0;
+        int i = 0;
+        for (; i + 3 < x.length; i += 4) {
+            double d0 = (double) x[i] - y[i];
+            double d1 = (double) x[i + 1] - y[i + 1];
+            double d2 = (double) x[i + 2] - y[i + 2];
+            double d3 = (double) x[i + 3] - y[i + 3];
+            sum0 += d0 * d0;
+            sum1 += d1 * d1;
+            sum2 += d2 * d2;
+            sum3 += d3 * d3;
+        }
+        for (; i < x.length; i++) {
+            double d = (double) x[i] - y[i];
+            sum0 += d * d;
+        }
+        return (sum0 + sum1) + (sum2 + sum3);
+    }
+
+    @Override
+    public void pearsonSums(double[] x, double[] y, double[] sums) {
+        checkLengths(x.length, y.length);
+
+        double sumX = 0.0, sumY = 0.0;
+        for (int i = 0; i < x.length; i++) {
+            sumX += x[i];
+            sumY += y[i];
+        }
+
+        // One sum each, added in order, so the scores match a plain loop
+        // to the last bit
+        double meanX = sumX / x.length;
+        double meanY = sumY / y.length;
+        double sumXY = 0.0, sumX2 = 0.0, sumY2 = 0.0;
+        for (int i = 0; i < x.length; i++) {
+            double a = x[i] - meanX;
+            double b = y[i] - meanY;
+            sumXY += a * b;
+            sumX2 += a * a;
+            sumY2 += b * b;
+        }
+        sums[0] = sumX;
+        sums[1] = sumY;
+        sums[2] = sumXY;
+        sums[3] = sumX2;
+        sums[4] = sumY2;
+    }
+
+    @Override
+    public void pearsonSums(float[] x, float[] y, double[] sums) {
+        checkLengths(x.length, y.length);
+
+        double sumX = 0.0, sumY = 0.0;
+        for (int i = 0; i < x.length; i++) {
+            sumX += x[i];
+            sumY += y[i];
+        }
+
+        // One sum each, added in order, so the scores match a plain loop
+        // to the last bit
+        double meanX = sumX / x.length;
+        double meanY = sumY / y.length;
+        double sumXY = 0.0, sumX2 = 0.0, sumY2 = 0.0;
+        for (int i = 0; i < x.length; i++) {
+            double a = x[i] - meanX;
+            double b = y[i] - meanY;
+            sumXY += a * b;
+            sumX2 += a * a;
+            sumY2 += b * b;
+        }
+        sums[0] = sumX;
+        sums[1] = sumY;
+        sums[2] = sumXY;
+        sums[3] = sumX2;
+        sums[4] = sumY2;
+    }
+
+    static void checkLengths(int length1, int length2) {
+        if (length1 != length2) {
+            throw new IllegalArgumentException("Vectors have different "
+                    + "lengths: " + length1 + " and " + length2);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+import java.nio.Buffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * A buffer of doubles or ints that can hold more entries than a single
+ * buffer can, by splitting them over segments of ~SEGMENT_SIZE~ entries
+ * each. The segments are on the heap, or in native memory from an
+ * ~OffHeapAllocator~, one block per segment.
+ */
+public class SegmentedBuffer {
+
+    /**
+     * The number of entries in every segment but the last, a power of 2 so
+     * that a position splits into a segment and an offset with a shift and a
+     * mask. A segment of doubles is then 1 GiB, well inside the largest
+     * block or array that can be allocated.
+     */
+    private static final int SEGMENT_SHIFT = 27;
+    public static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    /**
+     * long length: The number of entries in the buffer.
+     */
+    private final long length;
+
+    /**
+     * Buffer[] segments: The segments, all DoubleBuffers or all IntBuffers.
+     */
+    private final Buffer[] segments;
+
+    /**
+     * OffHeapAllocator.Block[] blocks: The native memory behind each
+     * segment, or null if they are on the heap.
+     */
+    private final OffHeapAllocator.Block[] blocks;
+
+    private SegmentedBuffer(long length, int bytes,
+            OffHeapAllocator allocator) {
+        this.length = length;
+        int count = (int) ((length + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+        segments = new Buffer[count];
+        blocks = allocator == null ? null : new OffHeapAllocator.Block[count];
+
+        for (int i = 0; i < count; i++) {
+            int size = (int) Math.min(SEGMENT_SIZE,
+                    length - ((long) i << SEGMENT_SHIFT));
+            if (allocator == null) {
+                segments[i] = bytes == Double.BYTES ? DoubleBuffer.allocate(
+                        size) : IntBuffer.allocate(size);
+            } else {
+                blocks[i] = allocator.allocate(size * bytes);
+                segments[i] = bytes == Double.BYTES
+                        ? blocks[i].buffer().asDoubleBuffer()
+                        : blocks[i].buffer().asIntBuffer();
+            }
+        }
+    }
+
+    /**
+     * Allocates a buffer of doubles, all 0.
+     *
+     * @param length    The number of entries
+     * @param allocator Allocates the native memory, or null to keep the
+     *                  entries on the heap
+     * @return The buffer
+     */
+    public static SegmentedBuffer doubles(long length,
+            OffHeapAllocator allocator) {
+        return new SegmentedBuffer(length, Double.BYTES, allocator);
+    }
+
+    /**
+     * Allocates a buffer of ints, all 0.
+     *
+     * @param length    The number of entries
+     * @param allocator Allocates the native memory, or null to keep the
+     *                  entries on the heap
+     * @return The buffer
+     */
+    public static SegmentedBuffer ints(long length,
+            OffHeapAllocator allocator) {
+        return new SegmentedBuffer(length, Integer.BYTES, allocator);
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public double getDouble(long index) {
+        return ((DoubleBuffer) segment(index)).get(
+                (int) index & SEGMENT_MASK);
+    }
+
+    public void putDouble(long index, double value) {
+        ((DoubleBuffer) segment(index)).put((int) index & SEGMENT_MASK,
+                value);
+    }
+
+    public int getInt(long index) {
+        return ((IntBuffer) segment(index)).get((int) index & SEGMENT_MASK);
+    }
+
+    public void putInt(long index, int value) {
+        ((IntBuffer) segment(index)).put((int) index & SEGMENT_MASK, value);
+    }
+
+    /**
+     * Copies a run of doubles out of the buffer, across segments if it has
+     * to.
+     *
+     * @param index  Position of the first entry to copy
+     * @param dst    Array to copy into
+     * @param offset Where in the array to start
+     * @param count  The number of entries
+     */
+    public void getDoubles(long index, double[] dst, int offset, int count) {
+        while (count > 0) {
+            int at = (int) index & SEGMENT_MASK;
+            int run = Math.min(count, SEGMENT_SIZE - at);
+            ((DoubleBuffer) segment(index)).get(at, dst, offset, run);
+            index += run;
+            offset += run;
+            count -= run;
+        }
+    }
+
+    /**
+     * Copies a run of doubles into the buffer, across segments if it has
+     * to.
+     *
+     * @param index  Position of the first entry to write
+     * @param src    Array to copy from
+     * @param offset Where in the array to start
+     * @param count  The number of entries
+     */
+    public void putDoubles(long index, double[] src, int offset, int count) {
+        while (count > 0) {
+            int at = (int) index & SEGMENT_MASK;
+            int run = Math.min(count, SEGMENT_SIZE - at);
+            ((DoubleBuffer) segment(index)).put(at, src, offset, run);
+            index += run;
+            offset += run;
+            count -= run;
+        }
+    }
+
+    /**
+     * Copies a run of ints out of the buffer, like ~getDoubles~.
+     */
+    public void getInts(long index, int[] dst, int offset, int count) {
+        while (count > 0) {
+            int at = (int) index & SEGMENT_MASK;
+            int run = Math.min(count, SEGMENT_SIZE - at);
+            ((IntBuffer) segment(index)).get(at, dst, offset, run);
+            index += run;
+            offset += run;
+            count -= run;
+        }
+    }
+
+    /**
+     * Copies a run of ints into the buffer, like ~putDoubles~.
+     */
+    public void putInts(long index, int[] src, int offset, int count) {
+        while (count > 0) {
+            int at = (int) index & SEGMENT_MASK;
+            int run = Math.min(count, SEGMENT_SIZE - at);
+            ((IntBuffer) segment(index)).put(at, src, offset, run);
+            index += run;
+            offset += run;
+            count -= run;
+        }
+    }
+
+    /**
+     * Copies the first entries of another buffer of the same type into the
+     * start of this one. Both have segments of the same size, so each
+     * segment is copied whole.
+     *
+     * @param from  The buffer to copy from
+     * @param count The number of entries to copy
+     */
+    public void copyFrom(SegmentedBuffer from, long count) {
+        for (int i = 0; count > 0; i++) {
+            int run = (int) Math.min(count, SEGMENT_SIZE);
+            if (segments[i] instanceof DoubleBuffer) {
+                ((DoubleBuffer) segments[i]).put(0,
+                        (DoubleBuffer) from.segments[i], 0, run);
+            } else {
+                ((IntBuffer) segments[i]).put(0,
+                        (IntBuffer) from.segments[i], 0, run);
+            }
+            count -= run;
+        }
+    }
+
+    /**
+     * Frees the buffer's native memory straight away. The buffer must not
+     * be used again, by any thread.
+     */
+    public void close() {
+        if (blocks != null) {
+            for (OffHeapAllocator.Block block : blocks) {
+                block.close();
+            }
+        }
+    }
+
+    /**
+     * The segment that holds an entry.
+     */
+    private Buffer segment(long index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index " + index
+                    + " out of bounds for length " + length);
+        }
+        return segments[(int) (index >>> SEGMENT_SHIFT)];
+    }
+}
@@ -0,0 +1,140 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+public class SimilarityCache {
+
+    /**
+     * One cached result and when it was stored.
+     */
+    private static class Entry {
+        private double[] scores;
+        private long created;
+
+        Entry(double[] scores, long created) {
+            this.scores = scores;
+            this.created = created;
+        }
+    }
+
+    /**
+     * int maxEntries: The most results kept at once. The least recently used
+     * result is dropped to make room for a new one.
+     */
+    private int maxEntries;
+
+    /**
+     * long ttlNanos: How long a result is kept, or 0 to keep it until it is
+     * evicted or invalidated.
+     */
+    private long ttlNanos;
+
+    /**
+     * The cached results in least to most recently used order. They are
+     * kept on the heap even when the recommender's stores are not, as
+     * there are never more than ~maxEntries~ of them.
+     */
+    private LinkedHashMap<String, Entry> entries;
+
+    /**
+     * long generation: Goes up every time the cache is invalidated, so a
+     * result worked out from older data is never stored.
+     */
+    private long generation = 0;
+
+    /**
+     * The number of lookups that found a result, that did not, and results
+     * dropped to make room.
+     */
+    private LongAdder hits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+    private LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxEntries The most results to keep at once
+     * @param ttlMillis  How long to keep each result, or 0 to keep results
+     *                   until they are evicted or invalidated
+     */
+    public SimilarityCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        // Access order, so the eldest entry is the least recently used
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > SimilarityCache.this.maxEntries) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Looks up a result.
+     *
+     * @param key The key the result was stored under
+     * @return The result, or null if it is not cached or has expired. The
+     *         array belongs to the cache and must not be changed.
+     */
+    public synchronized double[] get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && ttlNanos > 0
+                && System.nanoTime() - entry.created > ttlNanos) {
+            entries.remove(key);
+            entry = null;
+        }
+
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.scores;
+    }
+
+    /**
+     * Stores a result, unless the cache has been invalidated since the
+     * result was started.
+     *
+     * @param key        The key to store the result under
+     * @param scores     The result, which must not be changed afterwards
+     * @param generation ~getGeneration()~ from before the result was
+     *                   worked out
+     */
+    public synchronized void put(String key, double[] scores,
+            long generation) {
+        if (generation == this.generation && maxEntries > 0) {
+            entries.put(key, new Entry(scores, System.nanoTime()));
+        }
+    }
+
+    /**
+     * Drops every result, for when the data they came from has changed.
+     */
+    public synchronized void invalidate() {
+        generation++;
+        entries.clear();
+    }
+
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+}
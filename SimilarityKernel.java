@@ -0,0 +1,52 @@
+public interface SimilarityKernel {
+
+    /**
+     * The name of the kernel that uses the JDK Vector API. It is built from
+     * vector/VectorSimilarityKernel.java, which needs the
+     * jdk.incubator.vector module to compile and run.
+     */
+    String VECTOR_KERNEL = "VectorSimilarityKernel";
+
+    /**
+     * Sums the squared differences of two vectors of the same length.
+     *
+     * @param x The first vector
+     * @param y The second vector
+     * @return The sum of (x[i] - y[i])^2
+     */
+    double squaredDistance(double[] x, double[] y);
+
+    double squaredDistance(float[] x, float[] y);
+
+    /**
+     * Works out every sum Pearson needs in two passes over two vectors of
+     * the same length: the sums first, for the means, and then the sums of
+     * the values less their means.
+     *
+     * @param x    The first vector
+     * @param y    The second vector
+     * @param sums Array of at least 5 entries that is filled with the sums
+     *             of x, y, (x - mean x) * (y - mean y), (x - mean x)^2 and
+     *             (y - mean y)^2, in that order
+     */
+    void pearsonSums(double[] x, double[] y, double[] sums);
+
+    void pearsonSums(float[] x, float[] y, double[] sums);
+
+    /**
+     * Picks the fastest kernel that can run. The Vector API kernel is used
+     * when it has been compiled and the JVM was started with
+     * --add-modules jdk.incubator.vector; otherwise the scalar kernel is.
+     *
+     * @return The kernel
+     */
+    static SimilarityKernel load() {
+        try {
+            return (SimilarityKernel) Class.forName(VECTOR_KERNEL)
+                .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // Not compiled, or the incubator module is not there
+            return new ScalarSimilarityKernel();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+public interface SimilarityMetric {
+
+    /**
+     * Scores how alike two users' feature vectors are. Higher scores mean
+     * more alike, and only scores above 0 are used for playlists. It must
+     * be safe to call from many threads at once.
+     *
+     * @param vector1   The first vector
+     * @param vector2   The second vector
+     * @param dimension The length of the equivalent dense vectors, which
+     *                  is the number of entries Pearson averages over
+     * @return a similarity score
+     */
+    double score(SparseVector vector1, SparseVector vector2, int dimension);
+
+    /**
+     * Scores two vectors that are known to have no value in common. Most of
+     * the users any one user is scored against have nothing in common with
+     * them, so a metric that can work this out from the vectors' cached
+     * sums alone should. By default the vectors are scored in full.
+     *
+     * @param vector1   The first vector
+     * @param vector2   The second vector, which shares no id with the first
+     * @param dimension The length of the equivalent dense vectors
+     * @return The same score as ~score~
+     */
+    default double disjointScore(SparseVector vector1, SparseVector vector2,
+            int dimension) {
+        return score(vector1, vector2, dimension);
+    }
+
+    /**
+     * Whether ~disjointScore~ is cheaper than ~score~, at least for some
+     * vectors. Only then is it worth finding out which users share a value
+     * with a user; otherwise every user is scored in full. A metric that
+     * overrides ~disjointScore~ should override this to return true.
+     *
+     * @return True if the metric has a shortcut for disjoint vectors
+     */
+    default boolean hasDisjointScore() {
+        return false;
+    }
+
+    /**
+     * 1 / (1 + the Euclidean distance between the vectors).
+     */
+    SimilarityMetric EUCLIDEAN = new SimilarityMetric() {
+        @Override
+        public double score(SparseVector vector1, SparseVector vector2,
+                int dimension) {
+            return 1.0 / (1.0 + Math.sqrt(vector1.squaredDistance(vector2)));
+        }
+
+        @Override
+        public double disjointScore(SparseVector vector1,
+                SparseVector vector2, int dimension) {
+            // Every entry of each vector is matched by a zero in the other.
+            // Weighted squares could round differently added in id order,
+            // so only whole counts, which add up exactly, take the shortcut.
+            if (!vector1.isWhole() || !vector2.isWhole()) {
+                return score(vector1, vector2, dimension);
+            }
+            return 1.0 / (1.0 + Math.sqrt(vector1.getSumOfSquares()
+                    + vector2.getSumOfSquares()));
+        }
+
+        @Override
+        public boolean hasDisjointScore() {
+            return true;
+        }
+    };
+
+    /**
+     * The Pearson correlation of the equivalent dense vectors, moved from
+     * -1..1 to 0..1. It is added up in the same order as a loop over the
+     * dense vectors (see ~SparseVector.pearson~), so it gives the same
+     * score to the last bit, and users with nothing in common are scored in
+     * full as well, so it has no ~disjointScore~ shortcut.
+     */
+    SimilarityMetric PEARSON = new SimilarityMetric() {
+        @Override
+        public double score(SparseVector vector1, SparseVector vector2,
+                int dimension) {
+            return vector1.pearson(vector2, dimension);
+        }
+    };
+
+    /**
+     * The cosine of the angle between the vectors, from 0 to 1 since no
+     * value is negative. Only the shared entries are visited, as the norms
+     * are cached, and users with nothing in common score exactly 0.
+     */
+    SimilarityMetric COSINE = new SimilarityMetric() {
+        @Override
+        public double score(SparseVector vector1, SparseVector vector2,
+                int dimension) {
+            double norms = vector1.getNorm() * vector2.getNorm();
+            return norms == 0.0 ? 0.0 : vector1.dot(vector2) / norms;
+        }
+
+        @Override
+        public double disjointScore(SparseVector vector1,
+                SparseVector vector2, int dimension) {
+            return 0.0;
+        }
+
+        @Override
+        public boolean hasDisjointScore() {
+            return true;
+        }
+    };
+
+    /**
+     * The number of values the users share over the number of distinct
+     * values either has, ignoring how much weight each value has. This is
+     * the similarity the approximate mode's MinHash index estimates.
+     */
+    SimilarityMetric JACCARD = new SimilarityMetric() {
+        @Override
+        public double score(SparseVector vector1, SparseVector vector2,
+                int dimension) {
+            int shared = vector1.sharedIds(vector2);
+            int union = vector1.size() + vector2.size() - shared;
+            return union == 0 ? 0.0 : (double) shared / union;
+        }
+
+        @Override
+        public double disjointScore(SparseVector vector1,
+                SparseVector vector2, int dimension) {
+            return 0.0;
+        }
+
+        @Override
+        public boolean hasDisjointScore() {
+            return true;
+        }
+    };
+}
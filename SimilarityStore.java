@@ -0,0 +1,480 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+public class SimilarityStore {
+
+    /**
+     * Works out the similarity score of two users from their indices.
+     */
+    public interface Scorer {
+        double score(int user1, int user2);
+    }
+
+    /**
+     * int users: The number of users the store covers. A matrix that grows
+     * is filled in before this goes up, so a reader that reads it first
+     * always finds the rows it covers in ~matrix~.
+     */
+    private volatile int users;
+
+    /**
+     * int neighbours: How many neighbours are kept per user, or 0 if every
+     * pair is kept in a matrix.
+     */
+    private int neighbours;
+
+    /**
+     * Scorer scorer: Calculates the scores that are stored.
+     */
+    private Scorer scorer;
+
+    /**
+     * OffHeapAllocator allocator: Allocates the native memory the scores and
+     * neighbour lists are kept in, or null to keep them on the heap.
+     */
+    private OffHeapAllocator allocator;
+
+    /**
+     * SegmentedBuffer matrix: The score of every pair of users. Since the
+     * scores are symmetric only the lower triangle is kept, row by row. It
+     * is split into segments, as the pairs soon outnumber what one buffer
+     * can hold.
+     */
+    private volatile SegmentedBuffer matrix = null;
+
+    /**
+     * The indices and scores of each user's best neighbours, best first, in
+     * a slot of ~neighbours~ entries per user, how many entries of each slot
+     * are used, and whether each list needs to be worked out again before it
+     * is used.
+     */
+    private SegmentedBuffer neighbourIds = null;
+    private SegmentedBuffer neighbourScores = null;
+    private int[] sizes = null;
+    private boolean[] stale = null;
+
+    /**
+     * Number of rows each parallel task builds.
+     */
+    private static final int CHUNK_SIZE = 64;
+
+    /**
+     * Creates an empty store. Call ~build~ to fill it.
+     *
+     * @param users      The number of users to cover
+     * @param neighbours The number of neighbours to keep per user, or 0 to
+     *                   keep the score of every pair
+     * @param scorer     Calculates the scores to store
+     */
+    public SimilarityStore(int users, int neighbours, Scorer scorer) {
+        this(users, neighbours, scorer, null);
+    }
+
+    /**
+     * Creates an empty store that keeps its scores in native memory, out of
+     * the garbage collector's way. Call ~build~ to fill it.
+     *
+     * @param users      The number of users to cover
+     * @param neighbours The number of neighbours to keep per user, or 0 to
+     *                   keep the score of every pair
+     * @param scorer     Calculates the scores to store
+     * @param allocator  Allocates the native memory, or null to keep the
+     *                   scores on the heap after all
+     */
+    public SimilarityStore(int users, int neighbours, Scorer scorer,
+            OffHeapAllocator allocator) {
+        this.users = users;
+        this.neighbours = neighbours;
+        this.scorer = scorer;
+        this.allocator = allocator;
+    }
+
+    public int getUsers() {
+        return users;
+    }
+
+    /**
+     * @return True if every pair is stored, false if only each user's best
+     *         neighbours are
+     */
+    public boolean isMatrix() {
+        return neighbours <= 0;
+    }
+
+    public boolean isOffHeap() {
+        return allocator != null;
+    }
+
+    /**
+     * Scores every pair of users and stores the results.
+     *
+     * @param executor Executor to build the rows on, or null to build them on
+     *                 the calling thread
+     */
+    public synchronized void build(Executor executor) {
+        if (isMatrix()) {
+            matrix = SegmentedBuffer.doubles(triangle(users), allocator);
+        } else {
+            neighbourIds = SegmentedBuffer.ints(slots(users), allocator);
+            neighbourScores = SegmentedBuffer.doubles(slots(users),
+                    allocator);
+            sizes = new int[users];
+            stale = new boolean[users];
+        }
+
+        if (executor == null) {
+            buildRows(0, users);
+        } else {
+            ArrayList<CompletableFuture<Void>> chunks = new ArrayList<>();
+            for (int start = 0; start < users; start += CHUNK_SIZE) {
+                final int from = start;
+                final int to = Math.min(start + CHUNK_SIZE, users);
+                chunks.add(CompletableFuture.runAsync(() -> buildRows(from, to),
+                        executor));
+            }
+            CompletableFuture.allOf(chunks.toArray(
+                    new CompletableFuture<?>[0])).join();
+        }
+    }
+
+    /**
+     * Looks up the score of a pair of users.
+     *
+     * @param user1 Index of the first user
+     * @param user2 Index of the second user
+     * @return The score, or NaN if it is not stored
+     */
+    public double get(int user1, int user2) {
+        if (isMatrix()) {
+            return matrix.getDouble(position(user1, user2));
+        }
+
+        synchronized (this) {
+            if (stale[user1]) {
+                buildNeighbours(user1);
+            }
+            long offset = slots(user1);
+            for (long i = offset; i < offset + sizes[user1]; i++) {
+                if (neighbourIds.getInt(i) == user2) {
+                    return neighbourScores.getDouble(i);
+                }
+            }
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Copies one user's scores against every other user out of the matrix.
+     *
+     * @param user   Index of the user
+     * @param scores Array of at least ~getUsers()~ entries to fill. Users
+     *               added after it was made are left out.
+     */
+    public void row(int user, double[] scores) {
+        int count = Math.min(users, scores.length);
+        SegmentedBuffer pairs = matrix;
+
+        // The pairs with lower indices are the user's own row of the
+        // triangle, and the rest are spread down its column
+        pairs.getDoubles(triangle(user), scores, 0, user);
+        for (int i = user + 1; i < count; i++) {
+            scores[i] = pairs.getDouble(triangle(i) + user);
+        }
+    }
+
+    /**
+     * Looks up a user's best neighbours when only neighbour lists are stored.
+     * Scores of NaN are never kept.
+     *
+     * @param user Index of the user
+     * @return A copy of the neighbours' indices, best first
+     */
+    public synchronized int[] neighbourList(int user) {
+        if (stale[user]) {
+            buildNeighbours(user);
+        }
+        int[] ids = new int[sizes[user]];
+        neighbourIds.getInts(slots(user), ids, 0, ids.length);
+        return ids;
+    }
+
+    /**
+     * Looks up the scores that go with ~neighbourList~.
+     *
+     * @param user Index of the user
+     * @return A copy of the neighbours' scores, best first
+     */
+    public synchronized double[] neighbourScores(int user) {
+        if (stale[user]) {
+            buildNeighbours(user);
+        }
+        double[] scores = new double[sizes[user]];
+        neighbourScores.getDoubles(slots(user), scores, 0, scores.length);
+        return scores;
+    }
+
+    /**
+     * @return True if a neighbour list holds every other user with a score
+     */
+    public synchronized boolean isComplete(int user) {
+        if (stale[user]) {
+            buildNeighbours(user);
+        }
+        return sizes[user] < neighbours;
+    }
+
+    /**
+     * Rescores one user after their tracks have changed. Only that user's row
+     * and column of the matrix are recalculated.
+     *
+     * @param user Index of the user
+     */
+    public synchronized void update(int user) {
+        if (isMatrix()) {
+            for (int i = 0; i < users; i++) {
+                if (i != user) {
+                    matrix.putDouble(position(user, i),
+                            scorer.score(user, i));
+                }
+            }
+            return;
+        }
+
+        buildNeighbours(user);
+
+        for (int i = 0; i < users; i++) {
+            if (i != user && !stale[i]) {
+                updateNeighbour(i, user, scorer.score(i, user));
+            }
+        }
+    }
+
+    /**
+     * Adds new users to the end of the store and scores them against every
+     * other user. Rows already in the matrix are kept, since the lower
+     * triangle only grows at the end.
+     *
+     * @param users The number of users the store should cover
+     */
+    public synchronized void addUsers(int users) {
+        int oldUsers = this.users;
+        if (users <= oldUsers) {
+            return;
+        }
+
+        // Readers that still have the old buffers can go on using them, so
+        // they are left for the garbage collector rather than closed
+        if (isMatrix()) {
+            SegmentedBuffer grown = SegmentedBuffer.doubles(triangle(users),
+                    allocator);
+            grown.copyFrom(matrix, triangle(oldUsers));
+            matrix = grown;
+            buildRows(oldUsers, users);
+            this.users = users;
+            return;
+        }
+        this.users = users;
+
+        SegmentedBuffer oldIds = neighbourIds;
+        SegmentedBuffer oldScores = neighbourScores;
+        neighbourIds = SegmentedBuffer.ints(slots(users), allocator);
+        neighbourScores = SegmentedBuffer.doubles(slots(users), allocator);
+        neighbourIds.copyFrom(oldIds, slots(oldUsers));
+        neighbourScores.copyFrom(oldScores, slots(oldUsers));
+        sizes = Arrays.copyOf(sizes, users);
+        stale = Arrays.copyOf(stale, users);
+        buildRows(oldUsers, users);
+
+        // The old users may now have some of the new ones as neighbours
+        for (int i = 0; i < oldUsers; i++) {
+            if (!stale[i]) {
+                for (int user = oldUsers; user < users; user++) {
+                    updateNeighbour(i, user, scorer.score(i, user));
+                }
+            }
+        }
+    }
+
+    /**
+     * Fixes up one user's neighbour list after another user's score against
+     * them has changed.
+     *
+     * @param user    Index of the user whose list is being fixed
+     * @param changed Index of the user whose score changed
+     * @param score   The new score
+     */
+    private void updateNeighbour(int user, int changed, double score) {
+        // Work on copies and write the list back once it is fixed
+        int[] ids = neighbourList(user);
+        double[] scores = neighbourScores(user);
+        int size = ids.length;
+
+        // A list shorter than ~neighbours~ holds every user with a score.
+        // Otherwise it was cut short, and everyone left out ranks below its
+        // last neighbour.
+        boolean cut = size >= neighbours;
+        boolean belowCut = cut && ranksBelow(score, changed, scores[size - 1],
+                ids[size - 1]);
+
+        // Take the changed user out of the list, if they are in it
+        boolean removed = false;
+        for (int i = 0; i < size; i++) {
+            if (ids[i] == changed) {
+                System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+                System.arraycopy(scores, i + 1, scores, i, size - i - 1);
+                size--;
+                removed = true;
+                break;
+            }
+        }
+
+        if (Double.isNaN(score) || belowCut) {
+            if (removed && cut) {
+                // Someone who was left out may now belong in the gap
+                stale[user] = true;
+            } else if (removed) {
+                putNeighbours(user, ids, scores, size);
+            }
+            return;
+        }
+
+        if (size == ids.length) {
+            if (cut) {
+                // The list is full, so its last neighbour drops off
+                size--;
+            } else {
+                ids = Arrays.copyOf(ids, size + 1);
+                scores = Arrays.copyOf(scores, size + 1);
+            }
+        }
+
+        // Find where the changed user now belongs and make room for them
+        int place = 0;
+        while (place < size
+                && !ranksBelow(scores[place], ids[place], score, changed)) {
+            place++;
+        }
+        System.arraycopy(ids, place, ids, place + 1, size - place);
+        System.arraycopy(scores, place, scores, place + 1, size - place);
+        ids[place] = changed;
+        scores[place] = score;
+
+        putNeighbours(user, ids, scores, ids.length);
+    }
+
+    /**
+     * Builds a range of rows of the store.
+     *
+     * @param from Index of the first row
+     * @param to   Index after the last row
+     */
+    private void buildRows(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (isMatrix()) {
+                // Row i of the lower triangle holds the pairs (i, 0..i-1)
+                // Score the row into an array, then copy it in at once
+                double[] row = new double[i];
+                for (int j = 0; j < i; j++) {
+                    row[j] = scorer.score(i, j);
+                }
+                matrix.putDoubles(triangle(i), row, 0, i);
+            } else {
+                buildNeighbours(i);
+            }
+        }
+    }
+
+    /**
+     * Works out one user's neighbour list from scratch.
+     *
+     * @param user Index of the user
+     */
+    private void buildNeighbours(int user) {
+        NeighbourHeap heap = new NeighbourHeap(Math.min(neighbours, users));
+        for (int i = 0; i < users; i++) {
+            if (i != user) {
+                double score = scorer.score(user, i);
+                if (!Double.isNaN(score)) {
+                    heap.offer(i, score);
+                }
+            }
+        }
+
+        double[] scores = new double[heap.size()];
+        int[] ids = heap.drainDescending(scores);
+        putNeighbours(user, ids, scores, ids.length);
+        stale[user] = false;
+    }
+
+    /**
+     * Writes a user's neighbour list into their slot.
+     *
+     * @param user   Index of the user
+     * @param ids    The neighbours' indices, best first
+     * @param scores The neighbours' scores
+     * @param size   The number of neighbours, at most ~neighbours~
+     */
+    private void putNeighbours(int user, int[] ids, double[] scores,
+            int size) {
+        neighbourIds.putInts(slots(user), ids, 0, size);
+        neighbourScores.putDoubles(slots(user), scores, 0, size);
+        sizes[user] = size;
+    }
+
+    /**
+     * Frees the store's native memory straight away, where the allocator
+     * can. Nothing else may be using the store, as it cannot be used again
+     * afterwards. A store that is never closed has its memory freed once it
+     * can no longer be reached.
+     */
+    public synchronized void close() {
+        for (SegmentedBuffer buffer : new SegmentedBuffer[] {matrix,
+                neighbourIds, neighbourScores}) {
+            if (buffer != null) {
+                buffer.close();
+            }
+        }
+        matrix = null;
+        neighbourIds = null;
+        neighbourScores = null;
+    }
+
+    /**
+     * The number of neighbour list entries that make up the slots of a
+     * number of users.
+     */
+    private long slots(int users) {
+        return (long) users * neighbours;
+    }
+
+    /**
+     * Checks whether one neighbour ranks below another, using the same order
+     * as ~NeighbourHeap~.
+     */
+    private static boolean ranksBelow(double score1, int user1, double score2,
+            int user2) {
+        if (score1 != score2) {
+            return score1 < score2;
+        }
+        return user1 > user2;
+    }
+
+    /**
+     * The position of a pair of users in the lower triangle.
+     */
+    private static long position(int user1, int user2) {
+        if (user1 < user2) {
+            return triangle(user2) + user1;
+        }
+        return triangle(user1) + user2;
+    }
+
+    /**
+     * The number of pairs in the rows of the lower triangle before ~row~.
+     */
+    private static long triangle(int row) {
+        return (long) row * (row - 1) / 2;
+    }
+}
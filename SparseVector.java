@@ -0,0 +1,435 @@
+import java.util.Arrays;
+
+public class SparseVector {
+
+    /**
+     * int[] ids: The vocabulary ids with a non-zero value, in ascending order.
+     */
+    private int[] ids;
+
+    /**
+     * double[] values: The value stored at the matching index of ~ids~.
+     */
+    private double[] values;
+
+    /**
+     * int[] order: The position of each id in the dense vectors, or null if
+     * ids are their own positions. Ids past its end are their own position.
+     * int[] positions: The position of each non-zero entry, in ascending
+     * order, and double[] positionValues: their values.
+     */
+    private int[] order;
+    private int[] positions;
+    private double[] positionValues;
+
+    /**
+     * double[] centred: The dimension and order ~centredSums~ last worked
+     * out the vector's own sums for, followed by its sum and its sum of
+     * squares less the mean, so a vector scored against many others only
+     * works them out once.
+     */
+    private volatile double[] centred;
+
+    /**
+     * double sum: The sum of every value in the vector.
+     */
+    private double sum = 0.0;
+
+    /**
+     * double sumOfSquares: The sum of every value squared.
+     */
+    private double sumOfSquares = 0.0;
+
+    /**
+     * double norm: The L2 norm of the vector.
+     */
+    private double norm = 0.0;
+
+    /**
+     * boolean whole: Whether every value is a whole number, with squares
+     * small enough that adding any of them up is exact, whatever the order.
+     */
+    private boolean whole = true;
+
+    /**
+     * Builds a vector that counts how many times each id occurs.
+     *
+     * @param occurrences The ids to count, in any order and with repeats
+     */
+    public SparseVector(int[] occurrences) {
+        this(occurrences, null);
+    }
+
+    /**
+     * Builds a vector that adds up a weight for every time each id occurs.
+     *
+     * @param occurrences The ids, in any order and with repeats
+     * @param weights     The weight of each occurrence, or null to weight
+     *                    every occurrence 1
+     */
+    public SparseVector(int[] occurrences, double[] weights) {
+        this(occurrences, weights, null);
+    }
+
+    /**
+     * Builds a vector like ~SparseVector(int[], double[])~ that also knows
+     * where each id sits in the dense vectors, so that ~pearson~ can add
+     * the entries up in the same order as a loop over those would.
+     *
+     * @param occurrences The ids, in any order and with repeats
+     * @param weights     The weight of each occurrence, or null to weight
+     *                    every occurrence 1
+     * @param order       The position of each id, or null to use the id
+     */
+    public SparseVector(int[] occurrences, double[] weights, int[] order) {
+        // Sort the occurrences by id, keeping each with its weight
+        long[] sorted = new long[occurrences.length];
+        for (int i = 0; i < occurrences.length; i++) {
+            sorted[i] = ((long) occurrences[i] << 32) | i;
+        }
+        Arrays.sort(sorted);
+
+        ids = new int[sorted.length];
+        values = new double[sorted.length];
+        int size = 0;
+
+        // Repeated ids are next to each other once sorted, so collapse each
+        // run into a single value
+        for (int i = 0; i < sorted.length; i++) {
+            int id = (int) (sorted[i] >> 32);
+            double weight = weights == null ? 1.0
+                    : weights[(int) sorted[i]];
+            if (size > 0 && ids[size - 1] == id) {
+                values[size - 1] += weight;
+            } else {
+                ids[size] = id;
+                values[size] = weight;
+                size++;
+            }
+        }
+
+        ids = Arrays.copyOf(ids, size);
+        values = Arrays.copyOf(values, size);
+
+        for (int i = 0; i < size; i++) {
+            sum += values[i];
+            sumOfSquares += values[i] * values[i];
+            whole &= values[i] == Math.rint(values[i]);
+        }
+        norm = Math.sqrt(sumOfSquares);
+        whole &= sumOfSquares <= 0x1p52;
+
+        this.order = order;
+        positions = ids;
+        positionValues = values;
+        if (order != null) {
+            long[] byPosition = new long[size];
+            for (int i = 0; i < size; i++) {
+                int position = ids[i] < order.length ? order[ids[i]] : ids[i];
+                byPosition[i] = ((long) position << 32) | i;
+            }
+            Arrays.sort(byPosition);
+
+            positions = new int[size];
+            positionValues = new double[size];
+            for (int i = 0; i < size; i++) {
+                positions[i] = (int) (byPosition[i] >> 32);
+                positionValues[i] = values[(int) byPosition[i]];
+            }
+        }
+    }
+
+    /**
+     * @return The number of non-zero entries
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    public double getValue(int index) {
+        return values[index];
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public double getSumOfSquares() {
+        return sumOfSquares;
+    }
+
+    public double getNorm() {
+        return norm;
+    }
+
+    /**
+     * @return True if every value is a whole number, so that sums of the
+     *         values and their squares come out the same in any order
+     */
+    public boolean isWhole() {
+        return whole;
+    }
+
+    /**
+     * Looks up the value of one id.
+     *
+     * @param id The id
+     * @return The value, or 0 if the id has none
+     */
+    public double get(int id) {
+        int index = Arrays.binarySearch(ids, id);
+        return index < 0 ? 0.0 : values[index];
+    }
+
+    /**
+     * Calculates the dot product with another vector by merging the two
+     * sorted id lists.
+     *
+     * @param other The other vector
+     * @return The dot product
+     */
+    public double dot(SparseVector other) {
+        double dot = 0.0;
+        int i = 0;
+        int j = 0;
+
+        while (i < ids.length && j < other.ids.length) {
+            if (ids[i] == other.ids[j]) {
+                dot += values[i] * other.values[j];
+                i++;
+                j++;
+            } else if (ids[i] < other.ids[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+
+        return dot;
+    }
+
+    /**
+     * Counts the ids that have a value in both vectors by merging the two
+     * sorted id lists.
+     *
+     * @param other The other vector
+     * @return The number of shared ids
+     */
+    public int sharedIds(SparseVector other) {
+        int shared = 0;
+        int i = 0;
+        int j = 0;
+
+        while (i < ids.length && j < other.ids.length) {
+            if (ids[i] == other.ids[j]) {
+                shared++;
+                i++;
+                j++;
+            } else if (ids[i] < other.ids[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+
+        return shared;
+    }
+
+    /**
+     * Calculates the squared Euclidean distance to another vector by merging
+     * the two sorted id lists.
+     *
+     * @param other The other vector
+     * @return The sum of the squared differences
+     */
+    public double squaredDistance(SparseVector other) {
+        double sum = 0.0;
+        int i = 0;
+        int j = 0;
+
+        while (i < ids.length || j < other.ids.length) {
+            // An id missing from one vector is a zero in that vector
+            if (j == other.ids.length
+                    || (i < ids.length && ids[i] < other.ids[j])) {
+                sum += values[i] * values[i];
+                i++;
+            } else if (i == ids.length || other.ids[j] < ids[i]) {
+                sum += other.values[j] * other.values[j];
+                j++;
+            } else {
+                double difference = values[i] - other.values[j];
+                sum += difference * difference;
+                i++;
+                j++;
+            }
+        }
+
+        return sum;
+    }
+
+    /**
+     * Calculates the Pearson correlation with another vector, moved from
+     * -1..1 to 0..1, as two passes over the equivalent dense vectors would:
+     * the means first, then the sums of the values less their means, added
+     * one position at a time from position 0. Adding in that order keeps
+     * near ties in the same order as the dense loop puts them. The
+     * positions neither vector has add the same amount each time, so each
+     * run of them is added with ~addRepeated~ rather than one at a time.
+     *
+     * Vectors built with different orders are added up in id order.
+     *
+     * @param other     The other vector
+     * @param dimension The length of the equivalent dense vectors
+     * @return a similarity score
+     */
+    public double pearson(SparseVector other, int dimension) {
+        boolean ordered = order == other.order;
+        int[] ids1 = ordered ? positions : ids;
+        double[] values1 = ordered ? positionValues : values;
+        int[] ids2 = ordered ? other.positions : other.ids;
+        double[] values2 = ordered ? other.positionValues : other.values;
+
+        // Each vector's own sums do not depend on the other vector
+        double[] centred1 = centredSums(ordered, dimension);
+        double[] centred2 = other.centredSums(ordered, dimension);
+        double mean1 = centred1[2] / dimension;
+        double mean2 = centred2[2] / dimension;
+        double zero = (0.0 - mean1) * (0.0 - mean2);
+
+        double sumXY = 0.0;
+        int next = 0; // The first position that has not been added yet
+        int i = 0;
+        int j = 0;
+
+        while (i < ids1.length || j < ids2.length) {
+            int id;
+            double x = 0.0;
+            double y = 0.0;
+            if (j == ids2.length || (i < ids1.length && ids1[i] < ids2[j])) {
+                id = ids1[i];
+                x = values1[i++];
+            } else if (i == ids1.length || ids2[j] < ids1[i]) {
+                id = ids2[j];
+                y = values2[j++];
+            } else {
+                id = ids1[i];
+                x = values1[i++];
+                y = values2[j++];
+            }
+
+            sumXY = addRepeated(sumXY, zero, id - next);
+            sumXY += (x - mean1) * (y - mean2);
+            next = id + 1;
+        }
+        sumXY = addRepeated(sumXY, zero, dimension - next);
+
+        return (1.0 + (sumXY / (Math.sqrt(centred1[3])
+                * Math.sqrt(centred2[3])))) / 2.0;
+    }
+
+    /**
+     * Works out the vector's sum, and its sum of squares less the mean, in
+     * position order the same way as ~pearson~, or reuses them if they have
+     * already been worked out for the dimension.
+     *
+     * @param ordered   True to add up in position order, false for id order
+     * @param dimension The length of the equivalent dense vector
+     * @return The dimension, 1 if ordered or else 0, the sum, and the sum
+     *         of squares less the mean
+     */
+    private double[] centredSums(boolean ordered, int dimension) {
+        double[] sums = centred;
+        if (sums != null && sums[0] == dimension
+                && sums[1] == (ordered ? 1.0 : 0.0)) {
+            return sums;
+        }
+
+        int[] at = ordered ? positions : ids;
+        double[] entries = ordered ? positionValues : values;
+        double total = 0.0;
+        for (double value : entries) {
+            total += value;
+        }
+        double mean = total / dimension;
+        double zero = (0.0 - mean) * (0.0 - mean);
+
+        double squares = 0.0;
+        int next = 0;
+        for (int i = 0; i < at.length; i++) {
+            squares = addRepeated(squares, zero, at[i] - next);
+            squares += (entries[i] - mean) * (entries[i] - mean);
+            next = at[i] + 1;
+        }
+        squares = addRepeated(squares, zero, dimension - next);
+
+        sums = new double[] {dimension, ordered ? 1.0 : 0.0, total, squares};
+        centred = sums;
+        return sums;
+    }
+
+    /**
+     * Adds a value to a sum a number of times, one addition after another,
+     * giving exactly the double that many separate additions would.
+     *
+     * While the sum stays between two powers of 2, the doubles it can land
+     * on are evenly spaced, and each addition rounds the value to the same
+     * whole number of those spaces. Those additions are done in one step,
+     * and the few around a power of 2, or that round half way, one at a
+     * time.
+     *
+     * @param sum   The sum to add to
+     * @param value The value to add
+     * @param times The number of times to add it
+     * @return The new sum
+     */
+    static double addRepeated(double sum, double value, long times) {
+        if (value < 0.0) {
+            // Rounding to nearest is the same either side of 0
+            return -addRepeated(-sum, -value, times);
+        }
+
+        while (times > 0) {
+            long bits = Double.doubleToRawLongBits(sum);
+            long magnitude = bits & Long.MAX_VALUE;
+            int exponent = (int) (magnitude >>> 52);
+
+            // The spaces get uneven near 0, so add one at a time there
+            if (exponent < 64 || exponent == 0x7ff || !(value > 0.0)) {
+                sum += value;
+                times--;
+                continue;
+            }
+
+            // How many spaces the sum can move before it reaches the next
+            // power of 2: up for a positive sum, down towards 0 otherwise
+            long mantissa = magnitude & 0xfffffffffffffL;
+            long spaces = bits > 0 ? (1L << 52) - mantissa : mantissa;
+
+            // The value in spaces, which are 2^(exponent - 1075) wide
+            double exact = value * Double.longBitsToDouble(
+                    (long) (2098 - exponent) << 52);
+            long step = (long) (exact + 0.5);
+            if (!(exact < 0x1p52) || exact - (long) exact == 0.5
+                    || spaces < step + 1) {
+                sum += value;
+                times--;
+                continue;
+            }
+            if (step == 0) {
+                // Every addition rounds back to the same sum
+                return sum;
+            }
+
+            // The additions that stay a whole space short of the power of 2
+            long steps = Math.min(times, (spaces - step - 1) / step + 1);
+            magnitude += bits > 0 ? steps * step : -steps * step;
+            sum = Double.longBitsToDouble(magnitude | (bits & Long.MIN_VALUE));
+            times -= steps;
+        }
+        return sum;
+    }
+}
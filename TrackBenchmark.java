@@ -0,0 +1,240 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks for loading, similarity and playlists. The project has no build
+ * tool to pull in JMH, so this follows its approach by hand: untimed warmup
+ * iterations, timed ones that each repeat an operation for a fixed time,
+ * results kept in a volatile sink, and a fresh JVM for each data set size.
+ */
+public class TrackBenchmark {
+
+    /**
+     * One operation to time. Whatever it returns is kept, so the work that
+     * made it cannot be optimised away.
+     */
+    public interface Operation {
+        Object run();
+    }
+
+    /**
+     * Number of iterations run before timing starts, so the JIT compiler has
+     * settled, and number of iterations that are timed.
+     */
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 10;
+
+    /**
+     * Each iteration repeats the operation for at least this long.
+     */
+    private static final long ITERATION_NANOS = 200_000_000L;
+
+    /**
+     * The fields and methods every similarity benchmark is run for.
+     */
+    private static final String[] FIELDS = {"title", "artist", "genre"};
+    private static final String[] METHODS = {"euclidean", "pearson"};
+
+    /**
+     * The number of tracks asked for in each playlist.
+     */
+    private static final int PLAYLIST_TRACKS = 25;
+
+    /**
+     * The first argument of a JVM started by ~fork~.
+     */
+    private static final String FORKED = "--forked";
+
+    /**
+     * Object sink: Holds the result of the last operation.
+     */
+    private static volatile Object sink;
+
+    /**
+     * Times an operation and prints the average time per call. The operation
+     * is run for ~WARMUP_ITERATIONS~ untimed iterations and then
+     * ~MEASURED_ITERATIONS~ timed ones. Each iteration repeats the operation
+     * until ~ITERATION_NANOS~ have passed.
+     *
+     * @param name      The name to print
+     * @param rows      The size of the data set, to print
+     * @param operation The operation to time
+     */
+    public static void measure(String name, long rows, Operation operation) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(operation);
+        }
+
+        double best = Double.MAX_VALUE;
+        double worst = 0;
+        double total = 0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            double time = iteration(operation);
+            best = Math.min(best, time);
+            worst = Math.max(worst, time);
+            total += time;
+        }
+
+        System.out.printf("%-44s %10d %14.1f %14.1f %14.1f%n", name, rows,
+                total / MEASURED_ITERATIONS / 1000.0, best / 1000.0,
+                worst / 1000.0);
+    }
+
+    /**
+     * Runs one iteration.
+     *
+     * @return The average nanoseconds per call
+     */
+    private static double iteration(Operation operation) {
+        long calls = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            sink = operation.run();
+            calls++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        return (double) elapsed / calls;
+    }
+
+    /**
+     * Benchmarks loading, listing a genre's artists, the similarity
+     * calculations for every field and method, and playlists, on a
+     * generated data set.
+     *
+     * @param rows The number of tracks to generate
+     * @throws IOException If the data set cannot be written
+     */
+    public static void run(long rows) throws IOException {
+        File file = File.createTempFile("tracks-" + rows + "-", ".csv");
+        File snapshot = new File(TrackSnapshot.path(file.getPath()));
+
+        try {
+            TrackDataGenerator.generate(file.getPath(), rows, 1);
+
+            measure("ReadData.readInput", rows, () -> {
+                ReadData data = new ReadData();
+                data.readInput(file.getPath());
+                return data;
+            });
+
+            TrackRecommender recommender = new TrackRecommender(
+                    file.getPath());
+            ReadData data = recommender.getData();
+
+            // The same few users are scored over and over, so with the cache
+            // every call after the first would only time a lookup
+            recommender.setSimilarityCache(0, 0);
+
+            measure("ReadData.listGenreArtists", rows,
+                    () -> data.listGenreArtists("rock"));
+
+            // The same users are used for every benchmark, so each one does
+            // comparable work
+            List<String> usernames = data.getUsernames();
+            Random random = new Random(1);
+            String[] users = new String[64];
+            for (int i = 0; i < users.length; i++) {
+                users[i] = usernames.get(random.nextInt(usernames.size()));
+            }
+            int[] next = new int[1];
+
+            for (String field : FIELDS) {
+                for (String method : METHODS) {
+                    String combination = "(" + field + ", " + method + ")";
+
+                    measure("calculateSimilarity" + combination, rows, () -> {
+                        next[0] = (next[0] + 1) % users.length;
+                        return recommender.calculateSimilarity(
+                                users[next[0]],
+                                users[(next[0] + 1) % users.length], field,
+                                method);
+                    });
+
+                    measure("calculateAllSimilarity" + combination, rows,
+                            () -> {
+                                next[0] = (next[0] + 1) % users.length;
+                                return recommender.calculateAllSimilarity(
+                                        users[next[0]], field, method);
+                            });
+
+                    measure("makePlaylist" + combination, rows, () -> {
+                        next[0] = (next[0] + 1) % users.length;
+                        return recommender.makePlaylist(users[next[0]], field,
+                                method, PLAYLIST_TRACKS);
+                    });
+                }
+            }
+
+        } finally {
+            file.delete();
+            snapshot.delete();
+        }
+    }
+
+    /**
+     * Runs the benchmarks for one size in a new JVM with the same class path
+     * and heap, so the JIT compiler's profile from one size does not carry
+     * over into the next.
+     *
+     * @param rows The number of tracks to generate
+     * @throws IOException If the JVM cannot be started
+     */
+    private static void fork(long rows) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-Xmx"
+                + Runtime.getRuntime().maxMemory() / (1024 * 1024) + "m",
+                "-cp", System.getProperty("java.class.path"),
+                TrackBenchmark.class.getName(), FORKED, Long.toString(rows));
+        builder.inheritIO();
+
+        try {
+            int status = builder.start().waitFor();
+            if (status != 0) {
+                throw new IOException("Benchmark for " + rows
+                        + " rows exited with status " + status);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while benchmarking " + rows
+                    + " rows", e);
+        }
+    }
+
+    /**
+     * Usage: java TrackBenchmark [rows...]
+     *
+     * Runs every benchmark on a generated data set of each size, each size
+     * in its own JVM. The sizes default to 10^3, 10^4 and 10^5 rows; larger
+     * sets such as 10^7 can be given on the command line, with a larger
+     * heap.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 2 && args[0].equals(FORKED)) {
+            run(Long.parseLong(args[1]));
+
+            // Keep the last result reachable until the end
+            if (sink == null) {
+                System.out.println();
+            }
+            return;
+        }
+
+        long[] sizes = {1_000, 10_000, 100_000};
+        if (args.length > 0) {
+            sizes = new long[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Long.parseLong(args[i]);
+            }
+        }
+
+        System.out.printf("%-44s %10s %14s %14s %14s%n", "Benchmark", "Rows",
+                "Avg (us/op)", "Best (us/op)", "Worst (us/op)");
+        for (long rows : sizes) {
+            fork(rows);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+public class TrackCsvParser {
+
+    /**
+     * Receives each row of the file as it is parsed.
+     */
+    public interface RowHandler {
+        void row(String user, int rank, String title, String artist,
+                String album, String genre, int plays);
+    }
+
+    /**
+     * Number of bytes read from the file at a time.
+     */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Number of columns in a row of the file.
+     */
+    private static final int COLUMNS = 8;
+
+    /**
+     * ByteStringTable strings: Turns repeated values into the same String
+     * without decoding them again.
+     */
+    private ByteStringTable strings = new ByteStringTable();
+
+    /**
+     * The number of rows handed to the handler, and the number skipped
+     * because they did not have 8 columns or had a number that could not be
+     * read.
+     */
+    private long rows = 0;
+    private long skippedRows = 0;
+
+    /**
+     * The start and end of each column in the current line.
+     */
+    private int[] starts = new int[COLUMNS];
+    private int[] ends = new int[COLUMNS];
+
+    public long getRows() {
+        return rows;
+    }
+
+    public long getSkippedRows() {
+        return skippedRows;
+    }
+
+    /**
+     * Parses a semicolon separated track file, skipping its header line. The
+     * file is read through a large buffer and scanned byte by byte, numbers
+     * are read straight from the bytes, and a String is only created the
+     * first time a value is seen. Blank lines are ignored.
+     *
+     * @param filename The file name to read data from
+     * @param handler  Receives every row that could be read
+     * @throws IOException If the file cannot be read
+     */
+    public void parse(String filename, RowHandler handler) throws IOException {
+        try (FileInputStream input = new FileInputStream(filename);
+                FileChannel channel = input.getChannel()) {
+            parse(channel, 0, channel.size(), true, handler);
+        }
+    }
+
+    /**
+     * Parses part of a track file. The part should start at the beginning of
+     * a line and end just after a newline or at the end of the file. The
+     * channel is read with positional reads, so several parsers can work on
+     * different parts of the same channel at once.
+     *
+     * @param channel The file to read
+     * @param from    Position of the first byte to parse
+     * @param to      Position after the last byte to parse
+     * @param header  True if the first line is a header to skip
+     * @param handler Receives every row that could be read
+     * @throws IOException If the file cannot be read
+     */
+    public void parse(FileChannel channel, long from, long to, boolean header,
+            RowHandler handler) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE,
+                Math.max(to - from, 1)));
+        byte[] bytes = buffer.array();
+        long position = from;
+        boolean end = false;
+
+        // Bytes [0, limit) of the buffer hold unparsed data, and the
+        // current line starts at ~start~
+        int limit = 0;
+        int start = 0;
+
+        while (!end) {
+            // Move the unfinished line to the front and read more after it
+            if (start > 0) {
+                System.arraycopy(bytes, start, bytes, 0, limit - start);
+                limit -= start;
+                start = 0;
+            }
+            if (limit == bytes.length) {
+                // A line longer than the buffer, so make room for it
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                buffer = ByteBuffer.wrap(bytes);
+            }
+            // Never read past the end of the part
+            buffer.limit((int) Math.min(bytes.length,
+                    limit + (to - position))).position(limit);
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                end = true;
+            } else {
+                limit += read;
+                position += read;
+            }
+
+            // Handle every complete line in the buffer
+            int newline;
+            while ((newline = indexOf(bytes, (byte) '\n', start, limit))
+                    >= 0) {
+                if (header) {
+                    header = false;
+                } else {
+                    line(bytes, start, newline, handler);
+                }
+                start = newline + 1;
+            }
+
+            // The last line of the file may not end with a newline
+            if (end && start < limit && !header) {
+                line(bytes, start, limit, handler);
+            }
+        }
+    }
+
+    /**
+     * Splits a file into parts that each start at the beginning of a line,
+     * so the parts can be parsed on different threads.
+     *
+     * @param channel The file to split
+     * @param parts   The number of parts wanted
+     * @return The position each part starts at, followed by the size of the
+     *         file. There may be fewer parts than asked for if the file has
+     *         few lines.
+     * @throws IOException If the file cannot be read
+     */
+    public static long[] split(FileChannel channel, int parts)
+            throws IOException {
+        long size = channel.size();
+        long[] bounds = new long[parts + 1];
+        int count = 1;
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+        for (int i = 1; i < parts; i++) {
+            // Start looking at an even share of the file, but never before
+            // the end of the previous part
+            long position = Math.max(size * i / parts, bounds[count - 1]);
+            long bound = size;
+
+            // Move forward to just after the next newline
+            while (position < size && bound == size) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read <= 0) {
+                    break;
+                }
+                int newline = indexOf(buffer.array(), (byte) '\n', 0, read);
+                if (newline >= 0) {
+                    bound = position + newline + 1;
+                }
+                position += read;
+            }
+
+            if (bound > bounds[count - 1] && bound < size) {
+                bounds[count] = bound;
+                count++;
+            }
+        }
+
+        bounds[count] = size;
+        return Arrays.copyOf(bounds, count + 1);
+    }
+
+    /**
+     * Splits one line into columns and hands it to the handler.
+     *
+     * @param bytes   Array holding the line
+     * @param from    Index of the first byte of the line
+     * @param to      Index after the last byte of the line
+     * @param handler Receives the row
+     */
+    private void line(byte[] bytes, int from, int to, RowHandler handler) {
+        // Lines may end with \r\n
+        if (to > from && bytes[to - 1] == '\r') {
+            to--;
+        }
+        if (to == from) {
+            return;
+        }
+
+        // Find where each column starts and ends. Anything after the eighth
+        // column is ignored.
+        int column = 0;
+        starts[0] = from;
+        for (int i = from; i < to && column < COLUMNS; i++) {
+            if (bytes[i] == ';') {
+                ends[column] = i;
+                column++;
+                if (column < COLUMNS) {
+                    starts[column] = i + 1;
+                }
+            }
+        }
+        if (column < COLUMNS) {
+            ends[column] = to;
+            column++;
+        }
+
+        if (column < COLUMNS) {
+            skippedRows++;
+            return;
+        }
+
+        long rank = parseInt(bytes, starts[1], ends[1]);
+        long plays = parseInt(bytes, starts[7], ends[7]);
+        if (rank == Long.MIN_VALUE || plays == Long.MIN_VALUE) {
+            skippedRows++;
+            return;
+        }
+
+        // Column 5 holds the upper case genre
+        handler.row(string(bytes, 0), (int) rank, string(bytes, 2),
+                string(bytes, 3), string(bytes, 6), string(bytes, 5),
+                (int) plays);
+        rows++;
+    }
+
+    private String string(byte[] bytes, int column) {
+        return strings.get(bytes, starts[column], ends[column] - starts[column]);
+    }
+
+    /**
+     * Reads a whole number written in ASCII digits, with an optional sign.
+     *
+     * @param bytes Array holding the number
+     * @param from  Index of the first byte
+     * @param to    Index after the last byte
+     * @return The number, or Long.MIN_VALUE if it is not a valid int
+     */
+    private static long parseInt(byte[] bytes, int from, int to) {
+        boolean negative = false;
+        if (from < to && (bytes[from] == '-' || bytes[from] == '+')) {
+            negative = bytes[from] == '-';
+            from++;
+        }
+        if (from == to) {
+            return Long.MIN_VALUE;
+        }
+
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return Long.MIN_VALUE;
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return Long.MIN_VALUE;
+            }
+        }
+
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) {
+            return Long.MIN_VALUE;
+        }
+        return value;
+    }
+
+    private static int indexOf(byte[] bytes, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+public class TrackDataGenerator {
+
+    /**
+     * The genres tracks are spread over, as they appear in the Genre column.
+     */
+    private static final String[] GENRES = {"Rock", "Pop", "Jazz", "Metal",
+        "Hip Hop", "Country", "Electronic", "Indie", "Classical", "R&B"};
+
+    /**
+     * The average number of tracks each user has, which is roughly what
+     * cs1122-2025.csv has.
+     */
+    private static final int TRACKS_PER_USER = 10;
+
+    /**
+     * Writes a synthetic track file in the same format as cs1122-2025.csv.
+     * There is one user for about every 10 rows, and there are twice as many
+     * distinct titles as users. Popular titles are picked far more often than
+     * the rest, so users overlap the way real listeners do. Each title
+     * always has the same artist, album and genre. The same seed always
+     * gives the same file. Rows are written as they are made, so files of
+     * tens of millions of rows need no more memory than small ones.
+     *
+     * @param filename The file to write
+     * @param rows     The number of tracks to write
+     * @param seed     Seed for the random choices
+     * @throws IOException If the file cannot be written
+     */
+    public static void generate(String filename, long rows, long seed)
+            throws IOException {
+        Random random = new Random(seed);
+        long users = Math.max(1, rows / TRACKS_PER_USER);
+        long titles = users * 2 + 10;
+        long artists = users / 3 + 5;
+
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(filename), StandardCharsets.UTF_8),
+                1 << 16)) {
+            out.write("Username;Rank;Title;Artist;Genre;Genre;Album;"
+                    + "Number of Plays\r\n");
+
+            long written = 0;
+            for (long user = 0; written < rows; user++) {
+                // Between 1 and 19 tracks, so 10 on average, but never more
+                // than are left to write
+                int tracks = (int) Math.min(1 + random.nextInt(
+                        TRACKS_PER_USER * 2 - 1), rows - written);
+                String name = String.format("user%08d", user);
+
+                for (int rank = 1; rank <= tracks; rank++) {
+                    // Cubing a uniform number makes low ids much more likely
+                    double skew = random.nextDouble();
+                    long title = (long) (titles * skew * skew * skew);
+                    long artist = title % artists;
+                    String genre = GENRES[(int) (artist % GENRES.length)];
+
+                    out.write(name + ";" + rank + ";Title " + title
+                            + ";Artist " + artist + ";" + genre + ";"
+                            + genre.toUpperCase() + ";Album " + (title / 10)
+                            + ";" + (1 + random.nextInt(999)) + "\r\n");
+                }
+                written += tracks;
+            }
+        }
+    }
+
+    /**
+     * Usage: java TrackDataGenerator file rows [seed]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java TrackDataGenerator file rows "
+                    + "[seed]");
+            return;
+        }
+
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        generate(args[0], Long.parseLong(args[1]), seed);
+    }
+}
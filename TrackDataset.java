@@ -0,0 +1,121 @@
+import java.util.List;
+
+public class TrackDataset {
+
+    /**
+     * TrackStore store: Every track, stored column by column with each string
+     * turned into a dictionary id. It also holds the user registry and the
+     * title, artist and genre vocabularies.
+     */
+    private final TrackStore store;
+
+    /**
+     * Inverted indexes from genres, artists and titles to their tracks,
+     * kept up to date by ~add~.
+     */
+    private final TrackIndex index;
+
+    public TrackDataset() {
+        store = new TrackStore();
+        index = new TrackIndex(store);
+    }
+
+    /**
+     * Makes a copy that shares the storage of another dataset.
+     */
+    private TrackDataset(TrackDataset base) {
+        store = base.store.copy();
+        index = base.index.copy(store);
+    }
+
+    /**
+     * Starts the next version of the data. The copy can have tracks added
+     * and changed without this dataset changing, so readers can go on using
+     * this one until the copy is ready to replace it. The two share their
+     * storage until the copy changes part of it, so this dataset must not be
+     * changed afterwards.
+     *
+     * @return The copy
+     */
+    public TrackDataset copy() {
+        return new TrackDataset(this);
+    }
+
+    /**
+     * Adds a track to the store and indexes.
+     *
+     * @param user   A string user name
+     * @param rank   The rank of the track for this user
+     * @param title  The title of the track
+     * @param artist The artist's name who made the track
+     * @param album  The album number for the track
+     * @param genre  The genre of the track
+     * @param plays  The number of times the user played the track
+     * @return The track's row in the store
+     */
+    public int add(String user, int rank, String title, String artist,
+            String album, String genre, int plays) {
+        int row = store.add(user, rank, title, artist, album, genre, plays);
+        index.add(row);
+        return row;
+    }
+
+    public TrackStore getStore() {
+        return store;
+    }
+
+    public TrackIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return Every user, by id. The list cannot be changed, and does not
+     *         change when users are added to a copy of the dataset.
+     */
+    public List<String> getUsernames() {
+        return store.getUsers().values();
+    }
+
+    /**
+     * Looks up a user by id, without making a list of every user.
+     *
+     * @param userId The user's id
+     * @return The username
+     */
+    public String getUsername(int userId) {
+        return store.getUsers().get(userId);
+    }
+
+    /**
+     * Looks up a user's id, which is their index in ~getUsernames()~.
+     *
+     * @param user The username
+     * @return The user's id, or -1 if there is no such user
+     */
+    public int getUserId(String user) {
+        return store.getUsers().indexOf(user);
+    }
+
+    public Vocabulary getTitles() {
+        return store.getTitles();
+    }
+
+    public Vocabulary getArtists() {
+        return store.getArtists();
+    }
+
+    public Vocabulary getGenres() {
+        return store.getGenres();
+    }
+
+    /**
+     * Finds the first track added with a title, without listing the rest.
+     *
+     * @param titleId The title's id in ~getTitles()~
+     * @return The track, or null if no track has the title
+     */
+    public TrackInfo firstTitleTrack(int titleId) {
+        int row = index.firstTitleRow(titleId);
+        return row < 0 ? null : store.track(row);
+    }
+}
@@ -0,0 +1,195 @@
+import java.util.Arrays;
+
+public class TrackFeature {
+
+    /**
+     * The column a feature vector counts the values of.
+     */
+    public enum Field {
+        TITLE, ARTIST, GENRE
+    }
+
+    /**
+     * How much each of a user's tracks adds to its value's entry.
+     *
+     * COUNT: Every track adds 1, so an entry is the number of the user's
+     * tracks with that value.
+     * PLAYS: A track adds log(1 + its play count), so the tracks a user
+     * plays most count most without one track drowning out the rest.
+     * RANK: A track adds 1 / its rank, so the user's number 1 track counts
+     * twice as much as their number 2.
+     */
+    public enum Weighting {
+        COUNT, PLAYS, RANK
+    }
+
+    /**
+     * Field field: The column whose values are counted.
+     */
+    private Field field;
+
+    /**
+     * Weighting weighting: How much each track adds.
+     */
+    private Weighting weighting;
+
+    /**
+     * String name: The field name, followed by ":" and the weighting unless
+     * it is COUNT, such as "GENRE" or "ARTIST:PLAYS".
+     */
+    private String name;
+
+    public TrackFeature(Field field, Weighting weighting) {
+        this.field = field;
+        this.weighting = weighting;
+        this.name = weighting == Weighting.COUNT ? field.name()
+                : field.name() + ":" + weighting.name();
+    }
+
+    /**
+     * Reads a feature from a field name such as "genre" or "artist:plays".
+     * Fields other than title and artist count as genre, as they always
+     * have.
+     *
+     * @param fieldName The field name, with an optional weighting
+     * @return The feature
+     * @throws IllegalArgumentException If the weighting is not known
+     */
+    public static TrackFeature parse(String fieldName) {
+        fieldName = fieldName.toUpperCase();
+        Weighting weighting = Weighting.COUNT;
+        int colon = fieldName.indexOf(':');
+        if (colon >= 0) {
+            try {
+                weighting = Weighting.valueOf(fieldName.substring(
+                        colon + 1));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown weighting: "
+                        + fieldName.substring(colon + 1));
+            }
+            fieldName = fieldName.substring(0, colon);
+        }
+
+        Field field;
+        if (fieldName.equals("TITLE")) {
+            field = Field.TITLE;
+        } else if (fieldName.equals("ARTIST")) {
+            field = Field.ARTIST;
+        } else {
+            field = Field.GENRE;
+        }
+        return new TrackFeature(field, weighting);
+    }
+
+    public Field getField() {
+        return field;
+    }
+
+    public Weighting getWeighting() {
+        return weighting;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return True if the feature depends on the rank or play count
+     */
+    public boolean isWeighted() {
+        return weighting != Weighting.COUNT;
+    }
+
+    /**
+     * Builds a user's feature vector.
+     *
+     * @param tracks The tracks
+     * @param userId The user's id
+     * @return The vector, with an entry for each of the user's values
+     */
+    public SparseVector vector(TrackStore tracks, int userId) {
+        return vector(tracks, userId, null);
+    }
+
+    /**
+     * Builds a user's feature vector that knows where each of its values
+     * sits in the dense vectors, from ~denseOrder~.
+     *
+     * @param tracks The tracks
+     * @param userId The user's id
+     * @param order  The position of each value's id, or null to use the id
+     * @return The vector, with an entry for each of the user's values
+     */
+    public SparseVector vector(TrackStore tracks, int userId, int[] order) {
+        int[] occurrences = new int[tracks.trackCount(userId)];
+        double[] weights = isWeighted() ? new double[occurrences.length]
+                : null;
+
+        for (int i = 0; i < occurrences.length; i++) {
+            int row = tracks.row(userId, i);
+            // Locate the element (the count will be weighted more heavily if
+            // the same genre or artist appears multiple times)
+            occurrences[i] = id(tracks, row);
+
+            if (weighting == Weighting.PLAYS) {
+                weights[i] = Math.log1p(Math.max(0, tracks.plays(row)));
+            } else if (weighting == Weighting.RANK) {
+                weights[i] = tracks.rank(row) > 0 ? 1.0 / tracks.rank(row)
+                        : 0.0;
+            }
+        }
+
+        return new SparseVector(occurrences, weights, order);
+    }
+
+    /**
+     * Works out where each value of the field sits in the dense vectors the
+     * scores were first worked out on, which list the values as they are
+     * first seen going through each user's tracks, user by user, rather
+     * than in the order the rows were read.
+     *
+     * @param tracks The tracks
+     * @return The position of each value, by id
+     */
+    public int[] denseOrder(TrackStore tracks) {
+        Vocabulary values = field == Field.TITLE ? tracks.getTitles()
+                : field == Field.ARTIST ? tracks.getArtists()
+                : tracks.getGenres();
+        int[] order = new int[values.size()];
+        Arrays.fill(order, -1);
+
+        int next = 0;
+        for (int userId = 0; userId < tracks.getUsers().size(); userId++) {
+            for (int i = 0; i < tracks.trackCount(userId); i++) {
+                int id = id(tracks, tracks.row(userId, i));
+                if (id < order.length && order[id] < 0) {
+                    order[id] = next++;
+                }
+            }
+        }
+        for (int id = 0; id < order.length; id++) {
+            if (order[id] < 0) {
+                order[id] = next++;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * @return The id of a row's value of the field
+     */
+    private int id(TrackStore tracks, int row) {
+        if (field == Field.TITLE) {
+            return tracks.titleId(row);
+        } else if (field == Field.ARTIST) {
+            return tracks.artistId(row);
+        } else {
+            return tracks.genreId(row);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,215 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class TrackIndex {
+
+    /**
+     * TrackStore store: The tracks being indexed.
+     */
+    private TrackStore store;
+
+    /**
+     * The rows of every track for each artist, title and genre id, in the
+     * order the tracks were added.
+     */
+    private ChunkedList<IntList> artistRows = new ChunkedList<>();
+    private ChunkedList<IntList> titleRows = new ChunkedList<>();
+    private ChunkedList<IntList> genreRows = new ChunkedList<>();
+
+    /**
+     * The artists of a genre in the order they are first found walking each
+     * user's tracks in turn, and how many of the genre's rows they were
+     * worked out from.
+     */
+    private static class GenreArtists {
+        private final int rows;
+        private final ArrayList<String> artists;
+
+        GenreArtists(int rows, ArrayList<String> artists) {
+            this.rows = rows;
+            this.artists = artists;
+        }
+    }
+
+    /**
+     * The artists of each genre id, worked out when a genre is asked for.
+     * The map is shared with every copy of the index. Copies only ever add
+     * rows, so a genre's artists still hold for any copy whose genre has
+     * the same number of rows.
+     */
+    private ConcurrentHashMap<Integer, GenreArtists> sortedGenreArtists =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The posting lists a copy of an index has made its own, or null if the
+     * index is not a copy. A copy shares the rest with the index it was
+     * copied from, in the same way as ~TrackStore.copy~.
+     */
+    private Set<Object> owned = null;
+
+    /**
+     * @param store The tracks to index
+     */
+    public TrackIndex(TrackStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Makes a copy that shares the lists of another index.
+     */
+    private TrackIndex(TrackIndex base, TrackStore store) {
+        this.store = store;
+        artistRows = base.artistRows.copy();
+        titleRows = base.titleRows.copy();
+        genreRows = base.genreRows.copy();
+        sortedGenreArtists = base.sortedGenreArtists;
+        owned = Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    /**
+     * Makes a copy of the index for a copy of its store, which tracks can be
+     * added to without changing this index. This index must not be changed
+     * afterwards, but it can go on being read while the copy is changed.
+     *
+     * @param store The copy of the store, made with ~TrackStore.copy~
+     * @return The copy
+     */
+    public TrackIndex copy(TrackStore store) {
+        return new TrackIndex(this, store);
+    }
+
+    /**
+     * Adds the newest track of the store to every index.
+     *
+     * @param row The track's row
+     */
+    public void add(int row) {
+        posting(artistRows, store.artistId(row)).add(row);
+        posting(titleRows, store.titleId(row)).add(row);
+        posting(genreRows, store.genreId(row)).add(row);
+    }
+
+    /**
+     * Lists the distinct artists of a genre, in the order they are first
+     * found when walking each user's tracks in turn.
+     *
+     * @param genre The genre, exactly as it is stored
+     * @return A new list of artists
+     */
+    public ArrayList<String> genreArtists(String genre) {
+        int genreId = store.getGenres().indexOf(genre);
+        if (genreId < 0 || genreId >= genreRows.size()) {
+            return new ArrayList<>();
+        }
+
+        IntList rows = genreRows.get(genreId);
+        GenreArtists sorted = sortedGenreArtists.get(genreId);
+        if (sorted == null || sorted.rows != rows.size()) {
+            // A user's rows go up in the order they are in the user's list,
+            // so the user's id and the row together sort tracks in the
+            // order each user's tracks are walked
+            HashMap<Integer, Long> first = new HashMap<>();
+            for (int i = 0; i < rows.size(); i++) {
+                int row = rows.get(i);
+                long position = ((long) store.userId(row) << 32) | row;
+                first.merge(store.artistId(row), position, Math::min);
+            }
+            ArrayList<Map.Entry<Integer, Long>> artists = new ArrayList<>(
+                first.entrySet());
+            artists.sort(Map.Entry.comparingByValue());
+
+            ArrayList<String> names = new ArrayList<>(artists.size());
+            for (Map.Entry<Integer, Long> artist : artists) {
+                names.add(store.getArtists().get(artist.getKey()));
+            }
+            sorted = new GenreArtists(rows.size(), names);
+            sortedGenreArtists.put(genreId, sorted);
+        }
+
+        return new ArrayList<>(sorted.artists);
+    }
+
+    public ArrayList<TrackInfo> artistTracks(String artist) {
+        return tracks(artistRows, store.getArtists().indexOf(artist));
+    }
+
+    public ArrayList<TrackInfo> titleTracks(String title) {
+        return tracks(titleRows, store.getTitles().indexOf(title));
+    }
+
+    public ArrayList<TrackInfo> genreTracks(String genre) {
+        return tracks(genreRows, store.getGenres().indexOf(genre));
+    }
+
+    /**
+     * Finds the first track added with a title.
+     *
+     * @param titleId The title's id
+     * @return The track's row, or -1 if no track has the title
+     */
+    public int firstTitleRow(int titleId) {
+        if (titleId < 0 || titleId >= titleRows.size()
+                || titleRows.get(titleId).size() == 0) {
+            return -1;
+        }
+        return titleRows.get(titleId).get(0);
+    }
+
+    /**
+     * Builds a TrackInfo for every row in one posting list.
+     *
+     * @param postings The posting lists, indexed by id
+     * @param id       The id to list, or -1 for a value that is not stored
+     * @return A new list of tracks
+     */
+    private ArrayList<TrackInfo> tracks(ChunkedList<IntList> postings,
+            int id) {
+        ArrayList<TrackInfo> tracks = new ArrayList<>();
+        if (id >= 0 && id < postings.size()) {
+            IntList rows = postings.get(id);
+            for (int i = 0; i < rows.size(); i++) {
+                tracks.add(store.track(rows.get(i)));
+            }
+        }
+        return tracks;
+    }
+
+    /**
+     * Finds the posting list for an id for a row to be added to, adding
+     * empty lists up to it first if needed. A list shared with another
+     * index is replaced by one that shares its values, as in
+     * ~TrackStore.copy~.
+     *
+     * @param postings The posting lists, which this index owns
+     * @param id       The id
+     * @return The posting list, which this index owns
+     */
+    private IntList posting(ChunkedList<IntList> postings, int id) {
+        while (postings.size() <= id) {
+            postings.add(claim(new IntList()));
+        }
+
+        IntList rows = postings.get(id);
+        if (!owns(rows)) {
+            rows = claim(rows.share());
+            postings.set(id, rows);
+        }
+        return rows;
+    }
+
+    private boolean owns(Object part) {
+        return owned == null || owned.contains(part);
+    }
+
+    private <T> T claim(T part) {
+        if (owned != null) {
+            owned.add(part);
+        }
+        return part;
+    }
+}
@@ -0,0 +1,114 @@
+import java.util.Arrays;
+
+public class TrackKeySet {
+
+    /**
+     * long[] keys: The open-addressing table of keys, with ~EMPTY~ in every
+     * free slot. Its length is always a power of two.
+     */
+    private long[] keys;
+
+    /**
+     * int[] entries: The entry number of the key in each slot.
+     */
+    private int[] entries;
+
+    /**
+     * int size: The number of keys in the set.
+     */
+    private int size = 0;
+
+    /**
+     * Marks a free slot. No key is negative, since ids never are.
+     */
+    private static final long EMPTY = -1;
+
+    public TrackKeySet() {
+        this(16);
+    }
+
+    /**
+     * @param capacity The number of keys to make room for up front
+     */
+    public TrackKeySet(int capacity) {
+        // Keep the table at most half full
+        int slots = Integer.highestOneBit(Math.max(capacity, 4) * 2 - 1) * 2;
+        keys = new long[slots];
+        entries = new int[slots];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Packs a title and an artist into one key, so that two tracks have the
+     * same key exactly when they have the same title by the same artist.
+     *
+     * @param titleId  The title's dictionary id
+     * @param artistId The artist's dictionary id
+     * @return The key
+     */
+    public static long key(int titleId, int artistId) {
+        return ((long) titleId << 32) | (artistId & 0xFFFFFFFFL);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds a key unless the set already has it. Keys are numbered in the
+     * order they were first added, from 0.
+     *
+     * @param key The key to add, which must not be negative
+     * @return The key's entry number. It is ~size()~ from before the call
+     *         if the key was just added, and lower if it was already there.
+     */
+    public int add(long key) {
+        int slot = slot(key);
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                return entries[slot];
+            }
+            slot = (slot + 1) & (keys.length - 1);
+        }
+
+        keys[slot] = key;
+        entries[slot] = size;
+        size++;
+        if (size * 2 > keys.length) {
+            grow();
+        }
+        return size - 1;
+    }
+
+    /**
+     * Finds the slot a key's probe starts from. The key is mixed first, as
+     * keys that differ only in their low bits would otherwise crowd into
+     * neighbouring slots.
+     */
+    private int slot(long key) {
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed >>> 32) & (keys.length - 1);
+    }
+
+    /**
+     * Doubles the table, putting every key back in its new slot.
+     */
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldEntries = entries;
+        keys = new long[oldKeys.length * 2];
+        entries = new int[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slot(oldKeys[i]);
+                while (keys[slot] != EMPTY) {
+                    slot = (slot + 1) & (keys.length - 1);
+                }
+                keys[slot] = oldKeys[i];
+                entries[slot] = oldEntries[i];
+            }
+        }
+    }
+}
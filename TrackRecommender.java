@@ -1,307 +1,1937 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.InputMismatchException;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
-public class TrackRecommender {
+public class TrackRecommender implements AutoCloseable {
 
     /**
      * Utility that reads the data for the track recommender.
      */
     private ReadData data = null;
-    private int mapSize = 0;
+
+    /**
+     * Everything worked out from one version of the data. A reload builds a
+     * new version next to the old one and swaps it in whole, so a request
+     * that takes the version once scores users, looks them up and names
+     * them all from the same data, even if the data is reloaded halfway
+     * through.
+     */
+    private static class Version {
+        /**
+         * TrackDataset dataset: The data everything else is worked out from.
+         * Tracks added one at a time replace it with a newer copy that has
+         * the same ids, so it is moved on as they come in.
+         * int mapSize: The number of users when it was loaded.
+         */
+        private volatile TrackDataset dataset;
+        private final int mapSize;
+
+        /**
+         * long changes: Counts the changes to users' tracks, so a vector
+         * built while a user changed can be told apart and thrown away.
+         */
+        private volatile long changes = 0;
+
+        /**
+         * Each user's feature vector, by feature name and then user. The
+         * maps are concurrent so that many threads can score users at once.
+         * They are on the heap even when stores are not (see ~setOffHeap~).
+         */
+        private final ConcurrentHashMap<String,
+                ConcurrentHashMap<String, SparseVector>> featureVectors =
+                new ConcurrentHashMap<>();
+
+        /**
+         * Where each value of a field sits in the dense vectors the scores
+         * were first worked out on, by field, from ~TrackFeature.denseOrder~.
+         * Every vector of the version is built with the same order, which
+         * Pearson adds its sums up in. Like ~mapSize~ it is fixed when the
+         * data is loaded, so a track added later only changes its own user's
+         * sums; values first seen since then go after the rest, by id.
+         */
+        private final EnumMap<TrackFeature.Field, int[]> denseOrders =
+                new EnumMap<>(TrackFeature.Field.class);
+
+        /**
+         * Posting lists from each value to the users who have it, by feature
+         * name. They are built the first time a user is scored against every
+         * user for the feature, and only kept if no user changed meanwhile.
+         */
+        private final ConcurrentHashMap<String, PostingIndex> postingIndexes =
+                new ConcurrentHashMap<>();
+
+        /**
+         * Precomputed similarity stores keyed by field and method, and the
+         * dense vector length each one was scored with.
+         */
+        private final ConcurrentHashMap<String, SimilarityStore> stores =
+                new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, Integer> storeDimensions =
+                new ConcurrentHashMap<>();
+
+        /**
+         * MinHash indexes of the users by field, for the fields the
+         * approximate mode has been turned on for.
+         */
+        private final ConcurrentHashMap<String, MinHashIndex>
+                approximateIndexes = new ConcurrentHashMap<>();
+
+        /**
+         * The track to track index of titles that are held by the same
+         * users, and the feature whose weights it was built from.
+         */
+        private volatile CooccurrenceIndex trackNeighbours = null;
+        private volatile TrackFeature trackFeature = null;
+
+        Version(TrackDataset dataset) {
+            this.dataset = dataset;
+            this.mapSize = dataset.getUsernames().size();
+            for (TrackFeature.Field field : TrackFeature.Field.values()) {
+                denseOrders.put(field, new TrackFeature(field,
+                        TrackFeature.Weighting.COUNT).denseOrder(
+                                dataset.getStore()));
+            }
+        }
+
+        /**
+         * Looks up the vocabulary for a feature's field.
+         *
+         * @param feature The feature
+         * @return The vocabulary for its field
+         */
+        private Vocabulary vocabulary(TrackFeature feature) {
+            if (feature.getField() == TrackFeature.Field.TITLE) {
+                return dataset.getTitles();
+            } else if (feature.getField() == TrackFeature.Field.ARTIST) {
+                return dataset.getArtists();
+            } else {
+                return dataset.getGenres();
+            }
+        }
+
+        /**
+         * The number of entries a dense vector for a feature would have.
+         * Every user is given room for 10 tracks, unless the field has even
+         * more distinct values than that.
+         *
+         * @param feature The feature
+         * @return The length of a dense vector for the feature
+         */
+        private int dimension(TrackFeature feature) {
+            return Math.max(mapSize * 10, vocabulary(feature).size());
+        }
+
+        /**
+         * Returns the vector that adds up each value of a field in a user's
+         * tracks, with the feature's weighting. Vectors are built once and
+         * reused until the user's tracks change.
+         *
+         * @param user    The user
+         * @param feature The feature
+         * @return The user's vector for the feature
+         */
+        private SparseVector featureVector(String user,
+                TrackFeature feature) {
+            ConcurrentHashMap<String, SparseVector> vectors =
+                    featureVectors.computeIfAbsent(feature.getName(),
+                            name -> new ConcurrentHashMap<>());
+
+            SparseVector vector = vectors.get(user);
+            if (vector == null) {
+                long seen = changes;
+                TrackDataset data = dataset;
+                int userId = data.getUserId(user);
+                if (userId < 0) {
+                    throw new IllegalArgumentException("Unknown user: "
+                            + user);
+                }
+                vector = feature.vector(data.getStore(), userId,
+                        denseOrders.get(feature.getField()));
+                vectors.put(user, vector);
+
+                // The user may have changed while it was built, after their
+                // old vector was thrown away
+                if (changes != seen) {
+                    vectors.remove(user, vector);
+                }
+            }
+
+            return vector;
+        }
+
+        /**
+         * Finds the posting lists for a feature, reading every user's vector
+         * the first time they are needed. The lists themselves are only
+         * built once something reads them (see ~PostingIndex~).
+         *
+         * @param feature The feature
+         * @return The postings
+         */
+        private PostingIndex postingIndex(TrackFeature feature) {
+            PostingIndex index = postingIndexes.get(feature.getName());
+            if (index != null) {
+                return index;
+            }
+
+            long seen = changes;
+            List<String> usernames = dataset.getUsernames();
+            SparseVector[] vectors = new SparseVector[usernames.size()];
+            for (int i = 0; i < vectors.length; i++) {
+                vectors[i] = featureVector(usernames.get(i), feature);
+            }
+            index = new PostingIndex(vectors);
+            PostingIndex built = postingIndexes.putIfAbsent(
+                    feature.getName(), index);
+            if (built != null) {
+                return built;
+            }
+
+            // A user who changed while it was built may have been missed,
+            // since it was not there to be updated yet
+            if (changes != seen) {
+                postingIndexes.remove(feature.getName(), index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Version current: What has been worked out from the data the
+     * recommender is using now.
+     */
+    private volatile Version current;
+
+    /**
+     * The methods similarity can be calculated with, by upper case name.
+     */
+    private ConcurrentHashMap<String, SimilarityMetric> similarityMetrics =
+            new ConcurrentHashMap<>();
+
+    /**
+     * A field and method, and the version of the data to score them on,
+     * resolved once per request rather than once per pair of users.
+     */
+    private static class Scoring {
+        /**
+         * String key: The key of the store for the feature and metric, such
+         * as "GENRE/PEARSON" or "ARTIST:PLAYS/COSINE".
+         */
+        private String key;
+        private TrackFeature feature;
+        private SimilarityMetric metric;
+        private Version version;
+
+        Scoring(TrackFeature feature, String method, SimilarityMetric metric,
+                Version version) {
+            this.key = feature.getName() + "/" + method;
+            this.feature = feature;
+            this.metric = metric;
+            this.version = version;
+        }
+    }
+
+    /**
+     * OffHeapAllocator offHeap: Allocates the native memory that stores
+     * built from now on keep their scores in, or null to keep them on the
+     * heap.
+     */
+    private volatile OffHeapAllocator offHeap = null;
+
+    /**
+     * Populations up to this size get a full similarity matrix. Larger ones
+     * only keep each user's ~STORED_NEIGHBOURS~ best neighbours.
+     */
+    private static final int MATRIX_THRESHOLD = 4096;
+    private static final int STORED_NEIGHBOURS = 100;
+
+    /**
+     * Executor that ~calculateAllSimilarity~ splits its work across, or null
+     * to score every user on the calling thread.
+     */
+    private volatile Executor executor = null;
+
+    /**
+     * Populations smaller than this are always scored on the calling thread,
+     * since handing them to other threads costs more than it saves.
+     */
+    private static final int PARALLEL_THRESHOLD = 2048;
+
+    /**
+     * The kernel dense vectors are scored with: the Vector API one when it
+     * is available, otherwise the scalar one.
+     */
+    private static final SimilarityKernel KERNEL = SimilarityKernel.load();
+
+    /**
+     * Number of candidate users each parallel task scores.
+     */
+    private static final int CHUNK_SIZE = 512;
+
+    /**
+     * SimilarityCache similarityCache: The most recently used rows of scores
+     * worked out by ~allScores~, dropped whenever the data changes.
+     */
+    private volatile SimilarityCache similarityCache = new SimilarityCache(
+            CACHE_ENTRIES, 0);
+    private static final int CACHE_ENTRIES = 256;
+
+    /**
+     * Metrics metrics: Where call counts and latencies are recorded. It is
+     * shared with ~data~.
+     */
+    private volatile Metrics metrics;
+
+    /**
+     * The latency histograms of each timed method, by store key, so the
+     * hot paths do not build a metric name on every call. The methods are
+     * listed in ~TIMED~, and ~SIMILARITY~, ~ALL_SIMILARITY~ and ~PLAYLIST~
+     * are their positions.
+     */
+    private ConcurrentHashMap<String, LatencyHistogram[]> latencies =
+            new ConcurrentHashMap<>();
+    private static final String[] TIMED = {"calculateSimilarity",
+        "calculateAllSimilarity", "makePlaylist", "precomputeSimilarity",
+        "makePlaylists", "similarTracks", "extendPlaylist"};
+    private static final int SIMILARITY = 0;
+    private static final int ALL_SIMILARITY = 1;
+    private static final int PLAYLIST = 2;
+    private static final int PRECOMPUTE = 3;
+    private static final int PLAYLISTS = 4;
+    private static final int SIMILAR_TRACKS = 5;
+    private static final int EXTEND_PLAYLIST = 6;
+
+    /**
+     * Receives the playlists made by ~makePlaylists~.
+     */
+    public interface PlaylistSink {
+        void accept(String user, ArrayList<TrackInfo> playlist);
+    }
+
+    /**
+     * The seed of the hash functions of the approximate mode's MinHash
+     * indexes.
+     */
+    private static final long APPROXIMATE_SEED = 1122;
+
+    /**
+     * Number of users on each side of a tile of pairs scored by
+     * ~makePlaylists~, and number of users in each chunk when playlists are
+     * made one user at a time.
+     */
+    private static final int TILE_SIZE = 256;
+    private static final int BATCH_CHUNK_SIZE = 64;
+
+    /**
+     * The number of neighbours the track to track index keeps per track when
+     * it is built on first use.
+     */
+    private static final int TRACK_NEIGHBOURS = 50;
+
+    /**
+     * boolean weightedPlaylists: Whether playlists rank tracks by the total
+     * score of the neighbours who have them, rather than taking them most
+     * similar neighbour first.
+     */
+    private volatile boolean weightedPlaylists = false;
 
     public TrackRecommender(String filename) {
         // Initialize ReadData
         data = new ReadData();
-        data.readInput(filename);
-        mapSize = data.getUserTrackMap().size();
+        // Starts from the snapshot of the file when there is a valid one
+        data.loadInput(filename);
+        metrics = data.getMetrics();
+        current = new Version(data.getDataset());
+
+        addMetric("EUCLIDEAN", SimilarityMetric.EUCLIDEAN);
+        addMetric("PEARSON", SimilarityMetric.PEARSON);
+        addMetric("COSINE", SimilarityMetric.COSINE);
+        addMetric("JACCARD", SimilarityMetric.JACCARD);
+
+        // Keep the cached vectors and stores in step with the data
+        data.addListener(new DataListener() {
+            @Override
+            public void tracksAdded(String user) {
+                userChanged(user);
+            }
+
+            @Override
+            public void tracksUpdated(String user) {
+                weightsChanged(user);
+            }
+
+            @Override
+            public void dataReloaded() {
+                reload();
+            }
+        });
+    }
+
+    /**
+     * Works out a new version from the data after it has been replaced,
+     * rebuilding the stores, approximate indexes and track index the old
+     * version had, then swaps it in. Requests keep using the old version
+     * until it is ready, and any that started before the swap finish on it.
+     */
+    private synchronized void reload() {
+        Version old = current;
+        Version next = new Version(data.getDataset());
+
+        for (String key : old.stores.keySet()) {
+            String[] parts = key.split("/");
+            precompute(scoring(next, parts[0], parts[1]));
+        }
+        for (String field : old.approximateIndexes.keySet()) {
+            MinHashIndex index = old.approximateIndexes.get(field);
+            approximate(next, field, index.getBands(), index.getRows());
+        }
+        if (old.trackNeighbours != null) {
+            buildTrackNeighbours(next, old.trackFeature,
+                    old.trackNeighbours.getNeighbours());
+        }
+
+        current = next;
+        similarityCache.invalidate();
+    }
+
+    /**
+     * Brings the cached vectors and stores up to date after a user's tracks
+     * have changed. Only that user is rescored, unless a field has grown so
+     * much that every Pearson score has changed. A user who is new since the
+     * stores were built is added to them.
+     *
+     * @param user The user whose tracks changed
+     */
+    private synchronized void userChanged(String user) {
+        Version version = current;
+        version.dataset = data.getDataset();
+        version.changes++;
+        for (ConcurrentHashMap<String, SparseVector> vectors
+                : version.featureVectors.values()) {
+            vectors.remove(user);
+        }
+
+        // Every cached row holds a score against this user
+        similarityCache.invalidate();
+
+        int index = version.dataset.getUserId(user);
+        ConcurrentHashMap<String, SimilarityStore> stores = version.stores;
+        for (String key : stores.keySet()) {
+            String[] parts = key.split("/");
+            if (version.storeDimensions.get(key) != version.dimension(
+                    TrackFeature.parse(parts[0]))) {
+                precompute(scoring(version, parts[0], parts[1]));
+            } else if (index < stores.get(key).getUsers()) {
+                stores.get(key).update(index);
+            } else {
+                stores.get(key).addUsers(index + 1);
+            }
+        }
+        for (String field : version.approximateIndexes.keySet()) {
+            version.approximateIndexes.get(field).put(index,
+                    version.featureVector(user, TrackFeature.parse(field)));
+        }
+        for (String name : version.postingIndexes.keySet()) {
+            version.postingIndexes.get(name).put(index,
+                    version.featureVector(user, TrackFeature.parse(name)));
+        }
+        if (version.trackNeighbours != null) {
+            version.trackNeighbours.update(index);
+        }
+
+        // A row scored while the stores and indexes were being updated may
+        // have read them before they were, so it is not kept either
+        similarityCache.invalidate();
+    }
+
+    /**
+     * Brings the features weighted by rank or play count up to date after
+     * some of a user's tracks have been given a new rank or play count.
+     * Nothing else depends on either, so everything else is kept.
+     *
+     * @param user The user whose tracks changed
+     */
+    private synchronized void weightsChanged(String user) {
+        Version version = current;
+        version.dataset = data.getDataset();
+        version.changes++;
+        boolean changed = false;
+        for (String name : version.featureVectors.keySet()) {
+            if (TrackFeature.parse(name).isWeighted()) {
+                changed |= version.featureVectors.get(name).remove(user)
+                        != null;
+            }
+        }
+        // The postings and stores hold the user's vectors and scores even
+        // if the map of vectors has dropped them
+        for (String name : version.postingIndexes.keySet()) {
+            changed |= TrackFeature.parse(name).isWeighted();
+        }
+        for (String key : version.stores.keySet()) {
+            changed |= TrackFeature.parse(key.substring(0, key.indexOf('/')))
+                    .isWeighted();
+        }
+        if (changed) {
+            similarityCache.invalidate();
+        }
+
+        int index = version.dataset.getUserId(user);
+        for (String name : version.postingIndexes.keySet()) {
+            TrackFeature feature = TrackFeature.parse(name);
+            if (feature.isWeighted()) {
+                version.postingIndexes.get(name).put(index,
+                        version.featureVector(user, feature));
+            }
+        }
+        if (version.trackNeighbours != null
+                && version.trackFeature.isWeighted()) {
+            version.trackNeighbours.update(index);
+        }
+        if (!changed) {
+            // No weighted vector of the user has been built or kept, so no
+            // score that depends on one can have been worked out either
+            return;
+        }
+
+        ConcurrentHashMap<String, SimilarityStore> stores = version.stores;
+        for (String key : stores.keySet()) {
+            if (TrackFeature.parse(key.substring(0, key.indexOf('/')))
+                    .isWeighted() && index < stores.get(key).getUsers()) {
+                stores.get(key).update(index);
+            }
+        }
+
+        // As in ~userChanged~, rows scored while the postings and stores
+        // were being updated are not kept
+        similarityCache.invalidate();
+    }
+
+    /**
+     * Scores every pair of users for a field and method up front, so that
+     * ~calculateSimilarity~, ~calculateAllSimilarity~ and ~makePlaylist~ can
+     * look the scores up instead of working them out. The store is kept up
+     * to date as tracks are added.
+     *
+     * @param fieldName The field to base the similarity off of
+     * @param method    The method to calculate similarity
+     */
+    public synchronized void precomputeSimilarity(String fieldName,
+            String method) {
+        precompute(scoring(fieldName, method));
+    }
+
+    /**
+     * Does the work of ~precomputeSimilarity~, on the scoring's version of
+     * the data.
+     */
+    private void precompute(Scoring scoring) {
+        long start = System.nanoTime();
+        Version version = scoring.version;
+        String key = scoring.key;
+        TrackFeature feature = scoring.feature;
+        SimilarityMetric metric = scoring.metric;
+        int dimension = version.dimension(feature);
+        List<String> usernames = version.dataset.getUsernames();
+        int users = usernames.size();
+
+        SimilarityStore store = new SimilarityStore(users,
+                users <= MATRIX_THRESHOLD ? 0 : STORED_NEIGHBOURS,
+                (user1, user2) -> metric.score(
+                        version.featureVector(
+                                version.dataset.getUsername(user1), feature),
+                        version.featureVector(
+                                version.dataset.getUsername(user2), feature),
+                        dimension), offHeap);
+        store.build(users < PARALLEL_THRESHOLD ? null : executor);
+
+        version.storeDimensions.put(key, dimension);
+        version.stores.put(key, store);
+        latency(PRECOMPUTE, key).record(System.nanoTime() - start);
+    }
+
+    /**
+     * Checks whether a user is covered by a store. Users added after the
+     * store was built are covered once the store has been told about them.
+     *
+     * @param store The store
+     * @param index The user's id, or -1 for an unknown user
+     * @return True if the store holds the user's scores
+     */
+    private static boolean scored(SimilarityStore store, int index) {
+        return index >= 0 && index < store.getUsers();
+    }
+
+    /**
+     * Precomputes the similarity stores for every field and method.
+     */
+    public void precomputeAllSimilarity() {
+        for (String field : new String[] {"TITLE", "ARTIST", "GENRE"}) {
+            precomputeSimilarity(field, "EUCLIDEAN");
+            precomputeSimilarity(field, "PEARSON");
+        }
+    }
+
+    /**
+     * Resolves a field and method. Fields other than title and artist count
+     * as genre, and methods that have not been added count as Pearson, in
+     * the same way as ~calculateSimilarity~.
+     *
+     * @param fieldName The field to base the similarity off of, with an
+     *                  optional weighting such as "artist:plays"
+     * @param method    The method to calculate similarity
+     * @return The feature, metric and store key to use, on the current
+     *         version of the data
+     */
+    private Scoring scoring(String fieldName, String method) {
+        return scoring(current, fieldName, method);
+    }
+
+    /**
+     * Resolves a field and method like ~scoring(String, String)~, on a given
+     * version of the data.
+     */
+    private Scoring scoring(Version version, String fieldName,
+            String method) {
+        TrackFeature feature = TrackFeature.parse(fieldName);
+        method = method.toUpperCase();
+        SimilarityMetric metric = similarityMetrics.get(method);
+        if (metric == null) {
+            method = "PEARSON";
+            metric = similarityMetrics.get(method);
+        }
+        return new Scoring(feature, method, metric, version);
+    }
+
+    /**
+     * Adds a method that similarity can be calculated with, or replaces
+     * one. The built in methods are EUCLIDEAN, PEARSON, COSINE and JACCARD.
+     * Replacing a method does not change scores that have already been
+     * precomputed or cached.
+     *
+     * @param name   The name to ask for the method by, in any case
+     * @param metric The method
+     * @throws IllegalArgumentException If the name contains a "/"
+     */
+    public void addMetric(String name, SimilarityMetric metric) {
+        if (name.indexOf('/') >= 0) {
+            throw new IllegalArgumentException("Metric names cannot contain "
+                    + "/: " + name);
+        }
+        similarityMetrics.put(name.toUpperCase(), metric);
+    }
+
+    /**
+     * Finds the name a field and method are stored, cached and timed under,
+     * such as "GENRE/PEARSON". Two field and method pairs with the same name
+     * always give the same scores.
+     *
+     * @param fieldName The field to base the similarity off of
+     * @param method    The method to calculate similarity
+     * @return The name
+     */
+    public String similarityKey(String fieldName, String method) {
+        return scoring(fieldName, method).key;
+    }
+
+    /**
+     * Sets the executor used to score users in parallel, such as
+     * ~ForkJoinPool.commonPool()~. Passing null scores every user on the
+     * calling thread.
+     *
+     * @param executor The executor to use
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Chooses how ~makePlaylist~ and ~makePlaylists~ order the tracks they
+     * pick. By default each neighbour's tracks are taken in turn, most
+     * similar neighbour first. Weighted playlists instead give each track
+     * the sum of the scores of the neighbours who have it, so a track
+     * several close neighbours share comes before one only the closest
+     * has.
+     *
+     * @param weighted Whether to rank tracks by their neighbours' scores
+     */
+    public void setWeightedPlaylists(boolean weighted) {
+        this.weightedPlaylists = weighted;
+    }
+
+    public boolean isWeightedPlaylists() {
+        return weightedPlaylists;
+    }
+
+    /**
+     * Chooses where stores precomputed from now on keep their scores. Off
+     * the heap, a store's matrix or neighbour lists sit in native memory,
+     * which the garbage collector never has to copy or scan, and the scores
+     * are the same either way. Stores that have already been built stay
+     * where they are until they are precomputed again.
+     *
+     * Only the stores move. Each user's feature vectors and the rows in
+     * ~getSimilarityCache~ stay on the heap either way: the vectors grow
+     * with the number of tracks rather than pairs of users, and are what
+     * ~SimilarityMetric~ scores, and the cache holds a bounded number of
+     * rows.
+     *
+     * The native memory comes from ~OffHeapAllocator.load~, so the foreign
+     * memory allocator has to be there. A store that is replaced is freed
+     * once no reader still has it; ~close~ frees every store straight away.
+     *
+     * @param enabled Whether to keep new stores off the heap
+     * @throws UnsupportedOperationException If stores are to go off the
+     *                                       heap but the foreign memory
+     *                                       allocator cannot be loaded
+     */
+    public void setOffHeap(boolean enabled) {
+        offHeap = enabled ? OffHeapAllocator.load() : null;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap != null;
+    }
+
+    /**
+     * Drops every precomputed store, freeing the native memory of those
+     * kept off the heap straight away. Nothing else may be using the
+     * recommender while this runs. Scores are worked out from the data
+     * again until stores are precomputed again.
+     */
+    @Override
+    public synchronized void close() {
+        Version version = current;
+        for (SimilarityStore store : version.stores.values()) {
+            store.close();
+        }
+        version.stores.clear();
+        version.storeDimensions.clear();
+    }
+
+    public ReadData getData() {
+        return data;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public SimilarityCache getSimilarityCache() {
+        return similarityCache;
+    }
+
+    /**
+     * Replaces the cache of scores with an empty one.
+     *
+     * @param maxEntries The most rows of scores to keep, or 0 for no cache
+     * @param ttlMillis  How long to keep each row, or 0 to keep rows until
+     *                   they are evicted or the data changes
+     */
+    public void setSimilarityCache(int maxEntries, long ttlMillis) {
+        similarityCache = new SimilarityCache(maxEntries, ttlMillis);
+    }
+
+    /**
+     * Records this recommender's and its data's metrics in another
+     * registry.
+     *
+     * @param metrics The registry to use
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        data.setMetrics(metrics);
+        latencies.clear();
+    }
+
+    /**
+     * Finds the latency histogram of a timed method for a field and method,
+     * named like "makePlaylist.GENRE/PEARSON".
+     *
+     * @param operation The method's position in ~TIMED~
+     * @param key       The store key for the field and method
+     * @return The histogram
+     */
+    private LatencyHistogram latency(int operation, String key) {
+        LatencyHistogram[] histograms = latencies.computeIfAbsent(key,
+                k -> new LatencyHistogram[TIMED.length]);
+        // Two threads may both look the histogram up, but the registry
+        // gives them the same one
+        if (histograms[operation] == null) {
+            histograms[operation] = metrics.histogram(TIMED[operation] + "."
+                    + key);
+        }
+        return histograms[operation];
+    }
+
+    /**
+     * Calculates the similarity score between two users based on a field
+     * and method. This method defaults to using genre and the Pearson
+     * similarity algorithm.
+     *
+     * The field can be given a weighting from ~TrackFeature.Weighting~, as
+     * in "artist:plays", so that tracks count by play count or rank rather
+     * than 1 each. The method is EUCLIDEAN, PEARSON, COSINE, JACCARD or one
+     * added with ~addMetric~. COSINE is the cheapest, since only the values
+     * both users have are visited.
+     *
+     * @param user1     The first user
+     * @param user2     The second user
+     * @param fieldName The field to base the similarity off of
+     * @param method    The method to calculate similarity
+     */
+    public double calculateSimilarity(String user1, String user2,
+            String fieldName, String method) {
+        long start = System.nanoTime();
+        Scoring scoring = scoring(fieldName, method);
+        try {
+            return similarity(user1, user2, scoring);
+        } finally {
+            latency(SIMILARITY, scoring.key).record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Does the work of ~calculateSimilarity~.
+     */
+    private double similarity(String user1, String user2, Scoring scoring) {
+
+        double distance = -1;
+
+        // Look the score up if it has been precomputed
+        Version version = scoring.version;
+        SimilarityStore store = version.stores.get(scoring.key);
+        int index1 = version.dataset.getUserId(user1);
+        int index2 = version.dataset.getUserId(user2);
+        if (store != null && scored(store, index1) && scored(store, index2)
+                && index1 != index2) {
+            distance = store.get(index1, index2);
+            if (!Double.isNaN(distance)) {
+                return distance;
+            }
+        }
+
+        // The vectors that will be compared for similarity
+        SparseVector vector1 = version.featureVector(user1, scoring.feature);
+        SparseVector vector2 = version.featureVector(user2, scoring.feature);
+
+        distance = scoring.metric.score(vector1, vector2,
+                version.dimension(scoring.feature));
+
+        return distance;
+    }
+
+    /**
+     * Calculates all similarity scores between one user and all other users
+     * based on a field and method. If an executor has been set and there are
+     * enough users, the users are split into chunks that are scored in
+     * parallel. It is safe to call this from many threads at once.
+     *
+     * If the scores have been precomputed, they are read from the store
+     * instead. When the store only keeps each user's best neighbours, only
+     * those neighbours are returned.
+     *
+     * @param user      The user
+     * @param fieldName The field to base the similarity off of
+     * @param method    The method to calculate similarity
+     */
+    public HashMap<String, Double> calculateAllSimilarity(String user,
+            String fieldName,
+            String method) {
+        long start = System.nanoTime();
+        Scoring scoring = scoring(fieldName, method);
+        try {
+            return allSimilarity(user, scoring);
+        } finally {
+            latency(ALL_SIMILARITY, scoring.key).record(System.nanoTime()
+                    - start);
+        }
+    }
+
+    /**
+     * Does the work of ~calculateAllSimilarity~.
+     */
+    private HashMap<String, Double> allSimilarity(String user,
+            Scoring scoring) {
+
+        SimilarityStore store = scoring.version.stores.get(scoring.key);
+        int index = scoring.version.dataset.getUserId(user);
+        HashMap<String, Double> similarity;
+
+        // Users can be added while the scores are read, so the names are
+        // looked up afterwards, in data that has every user scored
+        if (store != null && scored(store, index) && !store.isMatrix()) {
+            int[] neighbours = store.neighbourList(index);
+            double[] scores = store.neighbourScores(index);
+            List<String> usernames = scoring.version.dataset.getUsernames();
+            similarity = new HashMap<>(neighbours.length * 4 / 3 + 1);
+            for (int i = 0; i < neighbours.length; i++) {
+                similarity.put(usernames.get(neighbours[i]), scores[i]);
+            }
+            return similarity;
+        }
+
+        // Only the candidates are scored in the approximate mode
+        if (index >= 0 && approximateIndex(scoring) != null) {
+            int[] candidates = approximateIndex(scoring).candidates(index);
+            double[] scores = candidateScores(user, scoring, candidates);
+            List<String> usernames = scoring.version.dataset.getUsernames();
+            similarity = new HashMap<>(candidates.length * 4 / 3 + 1);
+            for (int i = 0; i < candidates.length; i++) {
+                similarity.put(usernames.get(candidates[i]), scores[i]);
+            }
+            return similarity;
+        }
+
+        double[] scores = allScores(user, scoring);
+        List<String> usernames = scoring.version.dataset.getUsernames();
+        int size = scores.length;
+        similarity = new HashMap<>(size * 4 / 3 + 1);
+        String target;
+
+        for (int i = 0; i < size; i++) {
+            target = usernames.get(i);
+            // If the target and the user are not the same, add their score to
+            // the HashMap
+            if (!target.equals(user)) {
+                similarity.put(target, scores[i]);
+            }
+        }
+
+        return similarity;
+    }
+
+    /**
+     * Scores one user against every user, reading the scores from a
+     * precomputed matrix if there is one. Scores that had to be worked out
+     * are kept in ~similarityCache~, so asking again for the same user,
+     * field and method costs a lookup until the data changes. Only scores
+     * on the current version of the data are cached.
+     *
+     * @param user    The user
+     * @param scoring The field and method
+     * @return Each user's score, by their index in ~getUsernames()~. The
+     *         array may be shared with the cache and must not be changed.
+     */
+    private double[] allScores(String user, Scoring scoring) {
+        String key = scoring.key;
+        Version version = scoring.version;
+        SimilarityStore store = version.stores.get(key);
+        int index = version.dataset.getUserId(user);
+        if (store != null && scored(store, index) && store.isMatrix()) {
+            double[] scores = new double[store.getUsers()];
+            store.row(index, scores);
+            return scores;
+        }
+
+        SimilarityCache cache = similarityCache;
+        String cacheKey = key + "/" + user;
+        // Taken before scoring, so scores from data that changes while they
+        // are worked out are not kept. A reload swaps the version before it
+        // empties the cache, so a version that is still current once the
+        // generation has been taken has rows of the same users.
+        long generation = cache.getGeneration();
+        boolean cacheable = version == current;
+        double[] cached = cacheable ? cache.get(cacheKey) : null;
+        if (cached != null) {
+            metrics.counter("similarityCache.hits").increment();
+            return cached;
+        }
+        metrics.counter("similarityCache.misses").increment();
+
+        int dimension = version.dimension(scoring.feature);
+        int size = version.dataset.getUsernames().size();
+
+        // Build the user's vector up front, so an unknown user fails here
+        // rather than inside a worker
+        SparseVector vector = version.featureVector(user, scoring.feature);
+
+        // Only the users in the postings of the user's values can share one
+        // with them. The vectors are read first, so any of them that shares
+        // a value is already in the postings. A metric with no shortcut for
+        // the rest scores everyone in full, so it never reads the postings.
+        PostingIndex postings = version.postingIndex(scoring.feature);
+        SparseVector[] vectors = postings.vectors();
+        int[] overlapping = null;
+        if (scoring.metric.hasDisjointScore()) {
+            overlapping = postings.overlapping(vector);
+            metrics.counter("calculateAllSimilarity.overlapping").add(
+                    overlapping.length);
+        }
+        final int[] shared = overlapping;
+
+        // Every target's score goes into its own slot, so the chunks never
+        // write to the same place
+        double[] scores = new double[size];
+        Executor pool = executor;
+
+        if (pool == null || size < PARALLEL_THRESHOLD) {
+            scoreChunk(vector, scoring, vectors, shared, dimension, scores, 0,
+                    size);
+        } else {
+            ArrayList<CompletableFuture<Void>> chunks = new ArrayList<>();
+            for (int start = 0; start < size; start += CHUNK_SIZE) {
+                final int from = start;
+                final int to = Math.min(start + CHUNK_SIZE, size);
+                chunks.add(CompletableFuture.runAsync(() -> scoreChunk(vector,
+                        scoring, vectors, shared, dimension, scores, from, to),
+                        pool));
+            }
+
+            try {
+                CompletableFuture.allOf(chunks.toArray(
+                        new CompletableFuture<?>[0])).join();
+            } catch (CompletionException e) {
+                // Rethrow whatever the worker threw
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        if (cacheable) {
+            cache.put(cacheKey, scores, generation);
+        }
+        return scores;
+    }
+
+    /**
+     * Scores one user against a range of the other users, each of them
+     * once. Users who share no value with the user are scored with
+     * ~disjointScore~, so only the overlapping users have their values
+     * compared, unless the metric has no such shortcut.
+     *
+     * @param vector      The user's feature vector
+     * @param scoring     The field and method
+     * @param vectors     Every user's vector, from the feature's postings
+     * @param overlapping The users who may share a value with the user, in
+     *                    increasing order, or null to score every user in
+     *                    full
+     * @param dimension   The length of the equivalent dense vectors
+     * @param scores      Array to write each target's score into
+     * @param from        Index of the first target to score
+     * @param to          Index after the last target to score
+     */
+    private void scoreChunk(SparseVector vector, Scoring scoring,
+            SparseVector[] vectors, int[] overlapping, int dimension,
+            double[] scores, int from, int to) {
+        SimilarityMetric metric = scoring.metric;
+        Version version = scoring.version;
+        int k = 0;
+        if (overlapping != null) {
+            k = Arrays.binarySearch(overlapping, from);
+            k = k < 0 ? -k - 1 : k;
+        }
+
+        for (int i = from; i < to; i++) {
+            if (i >= vectors.length || vectors[i] == null) {
+                // A user added since the vectors were read could share
+                // anything with the user
+                scores[i] = metric.score(vector, version.featureVector(
+                        version.dataset.getUsername(i), scoring.feature),
+                        dimension);
+                continue;
+            }
+
+            if (overlapping == null) {
+                scores[i] = metric.score(vector, vectors[i], dimension);
+                continue;
+            }
+            while (k < overlapping.length && overlapping[k] < i) {
+                k++;
+            }
+            if (k < overlapping.length && overlapping[k] == i) {
+                scores[i] = metric.score(vector, vectors[i], dimension);
+            } else {
+                scores[i] = metric.disjointScore(vector, vectors[i],
+                        dimension);
+            }
+        }
+    }
+
+    /**
+     * Generates a playlist based on a user of a specified number of tracks.
+     * The most similar users are picked with a bounded heap and their tracks
+     * are added, most similar user first, until the playlist is full. Users
+     * with equal scores are taken in the order they were read in, and users
+     * with a score of 0 or less are never used.
+     *
+     * A track is only added once, however many neighbours have the same
+     * title by the same artist, and never if the user already has it. See
+     * ~setWeightedPlaylists~ for ranking the tracks by score instead.
+     *
+     * @param user           The user
+     * @param fieldName      The field to base the similarity off of
+     * @param method         The method to calculate similarity
+     * @param numberoftracks The total number of tracks
+     */
+    public ArrayList<TrackInfo> makePlaylist(String user, String fieldName,
+            String method,
+            int numberOfTracks) {
+        long start = System.nanoTime();
+        Scoring scoring = scoring(fieldName, method);
+        try {
+            return playlist(user, scoring, numberOfTracks);
+        } finally {
+            latency(PLAYLIST, scoring.key).record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Does the work of ~makePlaylist~.
+     */
+    private ArrayList<TrackInfo> playlist(String user, Scoring scoring,
+            int numberOfTracks) {
+        // Every neighbour's tracks could already be in the playlist, so
+        // start with one neighbour per track and pick twice as many each
+        // time the playlist comes up short
+        int count = numberOfTracks;
+        while (true) {
+            // Users can be added while the neighbours are picked, so no more
+            // are picked than there were users to begin with, and their
+            // tracks are read from data taken afterwards
+            int limit = Math.max(0, Math.min(count,
+                    scoring.version.dataset.getUsernames().size()));
+            double[] scores = new double[limit];
+            int[] neighbours = storedNeighbours(user, scoring, limit, scores);
+            if (neighbours == null && approximateIndex(scoring) != null) {
+                neighbours = approximateNeighbours(user, scoring, limit,
+                        scores);
+            } else if (neighbours == null) {
+                neighbours = exactNeighbours(user, scoring, limit, scores);
+            }
+
+            TrackDataset dataset = scoring.version.dataset;
+            ArrayList<TrackInfo> playList = assemble(dataset.getStore(),
+                    dataset.getUserId(user), neighbours, scores,
+                    numberOfTracks);
+            // Fewer neighbours than asked for means there are no more
+            if (playList.size() >= numberOfTracks
+                    || neighbours.length < count) {
+                return playList;
+            }
+            count *= 2;
+        }
+    }
+
+    /**
+     * Picks a user's best neighbours with a score above 0 by scoring every
+     * user.
+     *
+     * @param user    The user
+     * @param scoring The field and method
+     * @param count   The most neighbours to pick
+     * @return The neighbours' indices, best first
+     */
+    private int[] exactNeighbours(String user, Scoring scoring, int count) {
+        return exactNeighbours(user, scoring, count, null);
+    }
+
+    /**
+     * Picks a user's best neighbours in the same way as ~exactNeighbours~,
+     * also copying out their scores.
+     *
+     * @param scores Array of at least as many entries as there can be
+     *               neighbours to write their scores into, or null
+     */
+    private int[] exactNeighbours(String user, Scoring scoring, int count,
+            double[] scores) {
+        double[] similarity = allScores(user, scoring);
+        List<String> targets = scoring.version.dataset.getUsernames();
+        int size = similarity.length; // Number of targets
+
+        NeighbourHeap heap = new NeighbourHeap(Math.max(0,
+                Math.min(count, size)));
+
+        for (int i = 0; i < size; i++) {
+            if (!user.equals(targets.get(i)) && similarity[i] > 0) {
+                heap.offer(i, similarity[i]);
+            }
+        }
+
+        return heap.drainDescending(scores);
+    }
+
+    /**
+     * Picks a user's best neighbours with a score above 0 from the
+     * candidates the field's MinHash index finds, scoring only those
+     * candidates.
+     *
+     * @param user    The user
+     * @param scoring The field and method
+     * @param count   The most neighbours to pick
+     * @return The neighbours' indices, best first
+     */
+    private int[] approximateNeighbours(String user, Scoring scoring,
+            int count) {
+        return approximateNeighbours(user, scoring, count, null);
+    }
+
+    /**
+     * Picks a user's best neighbours in the same way as
+     * ~approximateNeighbours~, also copying out their scores.
+     *
+     * @param scores Array of at least as many entries as there can be
+     *               neighbours to write their scores into, or null
+     */
+    private int[] approximateNeighbours(String user, Scoring scoring,
+            int count, double[] scores) {
+        // Build the user's vector first, so an unknown user fails the same
+        // way as in the exact mode
+        scoring.version.featureVector(user, scoring.feature);
+        int[] candidates = approximateIndex(scoring).candidates(
+                scoring.version.dataset.getUserId(user));
+        double[] similarity = candidateScores(user, scoring, candidates);
+
+        NeighbourHeap heap = new NeighbourHeap(Math.max(0,
+                Math.min(count, candidates.length)));
+        for (int i = 0; i < candidates.length; i++) {
+            if (similarity[i] > 0) {
+                heap.offer(candidates[i], similarity[i]);
+            }
+        }
+
+        return heap.drainDescending(scores);
     }
 
     /**
-     * Calculates the similarity score between two users based on a field
-     * and method. This method defaults to using genre and the Pearson
-     * similarity algorithm.
+     * Scores a user against a list of candidates.
+     *
+     * @param user       The user
+     * @param scoring    The field and method
+     * @param candidates The candidates' indices
+     * @return The score of each candidate, in the same order
+     */
+    private double[] candidateScores(String user, Scoring scoring,
+            int[] candidates) {
+        Version version = scoring.version;
+        int dimension = version.dimension(scoring.feature);
+        SparseVector vector = version.featureVector(user, scoring.feature);
+        List<String> usernames = version.dataset.getUsernames();
+
+        double[] scores = new double[candidates.length];
+        for (int i = 0; i < candidates.length; i++) {
+            scores[i] = scoring.metric.score(vector, version.featureVector(
+                    usernames.get(candidates[i]), scoring.feature),
+                    dimension);
+        }
+        return scores;
+    }
+
+    /**
+     * Turns on the approximate mode for a field. Each user's distinct values
+     * of the field are summarised by a MinHash signature, which is cut into
+     * bands that are hashed into buckets. When there is no precomputed store
+     * for a field and method, ~calculateAllSimilarity~ and ~makePlaylist~
+     * then only score the users who share a bucket with the user, with the
+     * usual method, instead of every user. Since only the distinct values
+     * matter, the index is shared by every weighting of the field.
+     *
+     * More bands, or fewer hashes in each, find more candidates: more of
+     * the true neighbours are found, at the cost of scoring more users. Use
+     * ~approximateRecall~ to see how many of the true neighbours are found.
+     *
+     * @param fieldName The field to index
+     * @param bands     The number of bands
+     * @param rows      The number of hashes in each band
+     */
+    public synchronized void enableApproximate(String fieldName, int bands,
+            int rows) {
+        approximate(current, fieldName, bands, rows);
+    }
+
+    /**
+     * Does the work of ~enableApproximate~, on a given version of the data.
+     */
+    private void approximate(Version version, String fieldName, int bands,
+            int rows) {
+        TrackFeature feature = new TrackFeature(TrackFeature.parse(
+                fieldName).getField(), TrackFeature.Weighting.COUNT);
+        MinHashIndex index = new MinHashIndex(bands, rows, APPROXIMATE_SEED);
+        List<String> usernames = version.dataset.getUsernames();
+        for (int i = 0; i < usernames.size(); i++) {
+            index.put(i, version.featureVector(usernames.get(i), feature));
+        }
+        version.approximateIndexes.put(fieldKey(fieldName), index);
+    }
+
+    /**
+     * Turns the approximate mode off for a field, so every user is scored
+     * again.
+     *
+     * @param fieldName The field
+     */
+    public synchronized void disableApproximate(String fieldName) {
+        current.approximateIndexes.remove(fieldKey(fieldName));
+    }
+
+    /**
+     * Measures how well the approximate mode finds each user's best
+     * neighbours. For a sample of users, the best ~k~ neighbours with a
+     * score above 0 are picked both exactly and approximately.
      *
-     * @param user1     The first user
-     * @param user2     The second user
      * @param fieldName The field to base the similarity off of
      * @param method    The method to calculate similarity
+     * @param k         The number of best neighbours to compare
+     * @param samples   The number of users to sample, spread evenly over
+     *                  every user
+     * @return The fraction of the exact neighbours that the approximate mode
+     *         also picked, between 0 and 1, or NaN if the approximate mode
+     *         is not on for the field or no exact neighbours were found
      */
-    public double calculateSimilarity(String user1, String user2,
-            String fieldName, String method) {
+    public double approximateRecall(String fieldName, String method, int k,
+            int samples) {
+        Scoring scoring = scoring(fieldName, method);
+        MinHashIndex index = scoring.version.approximateIndexes.get(
+                fieldKey(fieldName));
+        List<String> usernames = scoring.version.dataset.getUsernames();
+        int population = usernames.size();
+        if (index == null || population == 0) {
+            return Double.NaN;
+        }
 
-        double distance = -1;
+        long found = 0;
+        long wanted = 0;
+        samples = Math.min(samples, population);
+        for (int s = 0; s < samples; s++) {
+            String user = usernames.get((int) ((long) s * population
+                    / samples));
+            int[] exact = exactNeighbours(user, scoring, k);
+            int[] approximate = approximateNeighbours(user, scoring, k);
 
-        // Index of a particular element in one of the unique element lists
-        int index = 0;
+            HashSet<Integer> picked = new HashSet<>();
+            for (int neighbour : approximate) {
+                picked.add(neighbour);
+            }
+            for (int neighbour : exact) {
+                if (picked.contains(neighbour)) {
+                    found++;
+                }
+            }
+            wanted += exact.length;
+        }
 
-        fieldName = fieldName.toUpperCase();
-        method = method.toUpperCase();
+        return wanted == 0 ? Double.NaN : (double) found / wanted;
+    }
 
-        ArrayList<String> uniqueTitles = uniqueTitles();
-        ArrayList<String> uniqueArtists = uniqueArtists();
-        ArrayList<String> uniqueGenres = uniqueGenres();
-
-        // The arrays that will be compared for similarity
-        ArrayList<Double> array1 = new ArrayList<>();
-        ArrayList<Double> array2 = new ArrayList<>();
-
-        // Ensure that an index will never be out of bounds
-        for (int i = 0; i < mapSize * 10; i++) {
-            array1.add(i, 0.0);
-            array2.add(i, 0.0);
-        }
-
-        // Input arrays
-        ArrayList<TrackInfo> tracks1 = data.getUserTrackMap().get(user1);
-        ArrayList<TrackInfo> tracks2 = data.getUserTrackMap().get(user2);
-
-        // Decide which field is being used
-        // Title
-        if (fieldName.equals("TITLE")) {
-            for (int i = 0; i < tracks1.size(); i++) {
-                // Locate the element
-                index = uniqueTitles.indexOf(tracks1.get(i).getTitle());
-                // Increment the value at the corresponding index (will be
-                // weighted more heavily if the same genre or artist appears
-                // multiple times)
-                array1.set(index, array1.get(index) + 1);
-            }
-            for (int i = 0; i < tracks2.size(); i++) {
-                // Locate the element
-                index = uniqueTitles.indexOf(tracks2.get(i).getTitle());
-                // Increment the value at the corresponding index (will be
-                // weighted more heavily if the same genre or artist appears
-                // multiple times)
-                array2.set(index, array2.get(index) + 1);
-            }
-            if (method.equals("EUCLIDEAN")) {
-                distance = euclideanDistance(array1, array2);
-            } else {
-                distance = pearsonDistance(array1, array2);
-            }
-
-            // Artist
-        } else if (fieldName.equals("ARTIST")) {
-            for (int i = 0; i < tracks1.size(); i++) {
-                // Locate the element
-                index = uniqueArtists.indexOf(tracks1.get(i).getArtist());
-                // Increment the value at the corresponding index (will be
-                // weighted more heavily if the same genre or artist appears
-                // multiple times)
-                array1.set(index, array1.get(index) + 1);
-            }
-            for (int i = 0; i < tracks2.size(); i++) {
-                // Locate the element
-                index = uniqueArtists.indexOf(tracks2.get(i).getArtist());
-                // Increment the value at the corresponding index (will be
-                // weighted more heavily if the same genre or artist appears
-                // multiple times)
-                array2.set(index, array2.get(index) + 1);
-            }
-            if (method.equals("EUCLIDEAN")) {
-                distance = euclideanDistance(array1, array2);
-            } else {
-                distance = pearsonDistance(array1, array2);
+    /**
+     * Finds the MinHash index to use for a field and method.
+     *
+     * @return The index, or null if the approximate mode is off for the
+     *         field or the scores have been precomputed
+     */
+    private MinHashIndex approximateIndex(Scoring scoring) {
+        if (scoring.version.stores.get(scoring.key) != null) {
+            return null;
+        }
+        return scoring.version.approximateIndexes.get(
+                scoring.feature.getField().name());
+    }
+
+    /**
+     * Finds the name of the field a field name refers to, in the same way as
+     * ~scoring~, without its weighting.
+     */
+    private String fieldKey(String fieldName) {
+        return TrackFeature.parse(fieldName).getField().name();
+    }
+
+    /**
+     * Builds the track to track index used by ~similarTracks~ and
+     * ~extendPlaylist~. Two tracks are alike when the same users have both:
+     * each track's weights over the users form a column, and tracks score
+     * the cosine of their columns. Only the best neighbours of each track
+     * are kept, and the index is kept up to date as tracks are added.
+     *
+     * Tracks are told apart by title.
+     *
+     * @param weighting  How much each user's track counts, as in
+     *                   ~TrackFeature.Weighting~: COUNT, PLAYS or RANK
+     * @param neighbours The number of neighbours to keep per track
+     * @throws IllegalArgumentException If the weighting is not known
+     */
+    public synchronized void precomputeTrackNeighbours(String weighting,
+            int neighbours) {
+        buildTrackNeighbours(current, TrackFeature.parse("TITLE:"
+                + weighting), neighbours);
+    }
+
+    /**
+     * Does the work of ~precomputeTrackNeighbours~, on a given version of the
+     * data.
+     */
+    private void buildTrackNeighbours(Version version, TrackFeature feature,
+            int neighbours) {
+        long start = System.nanoTime();
+        int titles = version.dataset.getTitles().size();
+
+        CooccurrenceIndex index = new CooccurrenceIndex(version.postingIndex(
+                feature), neighbours);
+        index.build(titles, titles < PARALLEL_THRESHOLD ? null : executor);
+
+        version.trackFeature = feature;
+        version.trackNeighbours = index;
+        latency(PRECOMPUTE, trackKey(feature)).record(System.nanoTime()
+                - start);
+    }
+
+    /**
+     * Finds the tracks most often held by the same users as a track, from
+     * the index built by ~precomputeTrackNeighbours~. The index is built
+     * with every track counting 1 if it has not been built yet.
+     *
+     * @param title          The track's title
+     * @param numberOfTracks The most tracks to find
+     * @return The tracks, most alike first
+     * @throws IllegalArgumentException If no user has the title
+     */
+    public ArrayList<TrackInfo> similarTracks(String title,
+            int numberOfTracks) {
+        Version version = current;
+        CooccurrenceIndex index = trackNeighbours(version);
+        long start = System.nanoTime();
+        try {
+            int id = version.dataset.getTitles().indexOf(title);
+            if (id < 0) {
+                throw new IllegalArgumentException("Unknown title: " + title);
             }
+            int[] neighbours = index.neighbourList(id);
+            return titleTracks(version.dataset, Arrays.copyOf(neighbours,
+                    Math.max(0, Math.min(numberOfTracks, neighbours.length))));
+        } finally {
+            latency(SIMILAR_TRACKS, trackKey(version.trackFeature)).record(
+                    System.nanoTime() - start);
+        }
+    }
 
-            // Genre
-        } else {
-            for (int i = 0; i < tracks1.size(); i++) {
-                // Locate the element
-                index = uniqueGenres.indexOf(tracks1.get(i).getGenre());
-                // Increment the value at the corresponding index (will be
-                // weighted more heavily if the same genre or artist appears
-                // multiple times)
-                array1.set(index, array1.get(index) + 1);
-            }
-            for (int i = 0; i < tracks2.size(); i++) {
-                // Locate the element
-                index = uniqueGenres.indexOf(tracks2.get(i).getGenre());
-                // Increment the value at the corresponding index (will be
-                // weighted more heavily if the same genre or artist appears
-                // multiple times)
-                array2.set(index, array2.get(index) + 1);
-            }
-            if (method.equals("EUCLIDEAN")) {
-                distance = euclideanDistance(array1, array2);
-            } else {
-                distance = pearsonDistance(array1, array2);
+    /**
+     * Finds tracks to add to a playlist. Each track's neighbours are read
+     * from the index built by ~precomputeTrackNeighbours~, and a track that
+     * is a neighbour of several of them adds up its scores.
+     *
+     * @param seeds          The playlist so far. Titles no user has are
+     *                       ignored.
+     * @param numberOfTracks The most tracks to add
+     * @return The tracks to add, best first, none with the same title as a
+     *         seed
+     */
+    public ArrayList<TrackInfo> extendPlaylist(List<TrackInfo> seeds,
+            int numberOfTracks) {
+        Version version = current;
+        CooccurrenceIndex index = trackNeighbours(version);
+        long start = System.nanoTime();
+        try {
+            IntList ids = new IntList();
+            for (TrackInfo seed : seeds) {
+                int id = version.dataset.getTitles().indexOf(seed.getTitle());
+                if (id >= 0) {
+                    ids.add(id);
+                }
             }
+            return titleTracks(version.dataset, index.extend(ids.toArray(),
+                    numberOfTracks));
+        } finally {
+            latency(EXTEND_PLAYLIST, trackKey(version.trackFeature)).record(
+                    System.nanoTime() - start);
         }
+    }
 
-        return distance;
+    /**
+     * Finds a version's track to track index, building it if it has not
+     * been built yet.
+     */
+    private CooccurrenceIndex trackNeighbours(Version version) {
+        CooccurrenceIndex index = version.trackNeighbours;
+        if (index == null) {
+            // Built under the lock, so no user changes while it is built
+            synchronized (this) {
+                if (version.trackNeighbours == null) {
+                    buildTrackNeighbours(version,
+                            TrackFeature.parse("TITLE:COUNT"),
+                            TRACK_NEIGHBOURS);
+                }
+                index = version.trackNeighbours;
+            }
+        }
+        return index;
     }
 
     /**
-     * This helper function creates an ArrayList of unique titles using the
-     * instance HashMap.
-     * 
-     * @return An ArrayList with only unique song titles.
+     * The name the track to track index for a feature is timed under, such
+     * as "TITLE:PLAYS/COOCCURRENCE".
      */
-    private ArrayList<String> uniqueTitles() {
-        ArrayList<String> uniqueTitles = new ArrayList<>();
-        String currentTitle;
-        for (int i = 0; i < mapSize; i++) {
-            for (int j = 0; j < data.getUserTrackMap().get(data.getUsernames().get(i)).size(); j++) {
+    private static String trackKey(TrackFeature feature) {
+        return feature.getName() + "/COOCCURRENCE";
+    }
 
-                // Set title for this iteration
-                currentTitle = data.getUserTrackMap().get(data.getUsernames().get(i)).get(j).getTitle();
+    /**
+     * Picks a track for each title: the first one added with it.
+     *
+     * @param dataset The data the titles' ids are from
+     * @param titles  The titles' ids
+     * @return The tracks, in the same order
+     */
+    private static ArrayList<TrackInfo> titleTracks(TrackDataset dataset,
+            int[] titles) {
+        ArrayList<TrackInfo> found = new ArrayList<>(titles.length);
+        for (int title : titles) {
+            TrackInfo track = dataset.firstTitleTrack(title);
+            if (track != null) {
+                found.add(track);
+            }
+        }
+        return found;
+    }
 
-                // If the title isn't already present in the list
-                if (!uniqueTitles.contains(currentTitle)) {
-                    uniqueTitles.add(currentTitle);
-                }
+    /**
+     * Fills a playlist with neighbours' tracks. Tracks are told apart by
+     * their title and artist ids, through a hash set that starts with the
+     * user's own tracks, so a track that is already in the playlist or that
+     * the user has is skipped.
+     *
+     * @param tracks         The store the user and neighbours are in
+     * @param user           Index of the user, or -1 for a user with no
+     *                       tracks
+     * @param neighbours     The neighbours' indices, best first
+     * @param scores         The neighbours' scores, in the same order
+     * @param numberOfTracks The total number of tracks
+     * @return The playlist, which is shorter than numberOfTracks only if the
+     *         neighbours do not have that many different tracks between them
+     */
+    private ArrayList<TrackInfo> assemble(TrackStore tracks, int user,
+            int[] neighbours, double[] scores, int numberOfTracks) {
+        TrackKeySet seen = new TrackKeySet(Math.max(0, Math.min(
+                numberOfTracks, tracks.size())) * 2);
+        if (user >= 0) {
+            for (int i = 0; i < tracks.trackCount(user); i++) {
+                seen.add(trackKey(tracks, tracks.row(user, i)));
             }
         }
-        return uniqueTitles;
+
+        return weightedPlaylists
+                ? rankedTracks(tracks, neighbours, scores, numberOfTracks,
+                        seen)
+                : neighbourTracks(tracks, neighbours, numberOfTracks, seen);
     }
 
     /**
-     * This helper function creates an ArrayList of unique artists using the
-     * instance HashMap.
-     * 
-     * @return An ArrayList with only unique artists.
+     * Fills a playlist with neighbours' tracks, most similar neighbour
+     * first, stopping as soon as it is full.
+     *
+     * @param tracks         The store the neighbours are in
+     * @param neighbours     The neighbours' indices, best first
+     * @param numberOfTracks The total number of tracks
+     * @param seen           The tracks to leave out, which each added track
+     *                       joins
+     * @return The playlist
      */
-    private ArrayList<String> uniqueArtists() {
-        ArrayList<String> uniqueArtists = new ArrayList<>();
-        String currentArtist;
-        for (int i = 0; i < mapSize; i++) {
-            for (int j = 0; j < data.getUserTrackMap().get(data.getUsernames().get(i)).size(); j++) {
+    private ArrayList<TrackInfo> neighbourTracks(TrackStore tracks,
+            int[] neighbours, int numberOfTracks, TrackKeySet seen) {
 
-                // Set artist for this iteration
-                currentArtist = data.getUserTrackMap().get(data.getUsernames().get(i)).get(j).getArtist();
+        ArrayList<TrackInfo> playList = new ArrayList<>();
+        int skipped = 0;
 
-                // If the artist isn't already present in the list
-                if (!uniqueArtists.contains(currentArtist)) {
-                    uniqueArtists.add(currentArtist);
+        int n;
+        for (n = 0; n < neighbours.length
+                && playList.size() < numberOfTracks; n++) {
+            for (int i = 0; i < tracks.trackCount(neighbours[n])
+                    && playList.size() < numberOfTracks; i++) {
+                int row = tracks.row(neighbours[n], i);
+                int before = seen.size();
+                if (seen.add(trackKey(tracks, row)) == before) {
+                    playList.add(tracks.track(row));
+                } else {
+                    skipped++;
                 }
             }
         }
-        return uniqueArtists;
+
+        metrics.counter("makePlaylist.neighbours").add(n);
+        metrics.counter("makePlaylist.tracks").add(playList.size());
+        metrics.counter("makePlaylist.skipped").add(skipped);
+
+        return playList;
     }
 
     /**
-     * This helper function creates an ArrayList of unique genres using the
-     * instance HashMap.
-     * 
-     * @return An ArrayList with only unique genres.
+     * Fills a playlist with the neighbours' tracks that have the highest
+     * total score, where each neighbour who has a track adds their score to
+     * it. Tracks with equal totals keep the order ~neighbourTracks~ would
+     * put them in.
+     *
+     * @param tracks         The store the neighbours are in
+     * @param neighbours     The neighbours' indices, best first
+     * @param scores         The neighbours' scores, in the same order
+     * @param numberOfTracks The total number of tracks
+     * @param seen           The tracks to leave out
+     * @return The playlist
      */
-    private ArrayList<String> uniqueGenres() {
-        ArrayList<String> uniqueGenres = new ArrayList<>();
-        String currentGenre;
-        for (int i = 0; i < mapSize; i++) {
-            for (int j = 0; j < data.getUserTrackMap().get(data.getUsernames().get(i)).size(); j++) {
+    private ArrayList<TrackInfo> rankedTracks(TrackStore tracks,
+            int[] neighbours, double[] scores, int numberOfTracks,
+            TrackKeySet seen) {
+        int excluded = seen.size();
+        int skipped = 0;
+
+        // Each candidate track's total, the row it was first met in, and
+        // the last neighbour who added to its total
+        double[] totals = new double[16];
+        int[] rows = new int[16];
+        int[] lastNeighbour = new int[16];
 
-                // Set genre for this iteration
-                currentGenre = data.getUserTrackMap().get(data.getUsernames().get(i)).get(j).getGenre();
+        for (int n = 0; n < neighbours.length; n++) {
+            for (int i = 0; i < tracks.trackCount(neighbours[n]); i++) {
+                int row = tracks.row(neighbours[n], i);
+                int before = seen.size();
+                int candidate = seen.add(trackKey(tracks, row)) - excluded;
+                if (candidate < 0) {
+                    skipped++;
+                    continue;
+                }
 
-                // If the genre isn't already present in the list
-                if (!uniqueGenres.contains(currentGenre)) {
-                    uniqueGenres.add(currentGenre);
+                if (candidate == before - excluded) {
+                    if (candidate == totals.length) {
+                        totals = Arrays.copyOf(totals, candidate * 2);
+                        rows = Arrays.copyOf(rows, candidate * 2);
+                        lastNeighbour = Arrays.copyOf(lastNeighbour,
+                                candidate * 2);
+                    }
+                    rows[candidate] = row;
+                    lastNeighbour[candidate] = -1;
+                } else {
+                    skipped++;
+                }
+                // A neighbour with the same track twice only counts once
+                if (lastNeighbour[candidate] != n) {
+                    totals[candidate] += scores[n];
+                    lastNeighbour[candidate] = n;
                 }
             }
         }
-        return uniqueGenres;
+
+        // Candidates are numbered in the order they were met, which is the
+        // order the heap keeps for equal totals
+        int candidates = seen.size() - excluded;
+        NeighbourHeap heap = new NeighbourHeap(Math.max(0, Math.min(
+                numberOfTracks, candidates)));
+        for (int candidate = 0; candidate < candidates; candidate++) {
+            heap.offer(candidate, totals[candidate]);
+        }
+
+        ArrayList<TrackInfo> playList = new ArrayList<>(heap.size());
+        for (int candidate : heap.drainDescending()) {
+            playList.add(tracks.track(rows[candidate]));
+        }
+
+        metrics.counter("makePlaylist.neighbours").add(neighbours.length);
+        metrics.counter("makePlaylist.tracks").add(playList.size());
+        metrics.counter("makePlaylist.skipped").add(skipped);
+
+        return playList;
     }
 
     /**
-     * Calculates all similarity scores between one user and all other users
-     * based on a field and method.
+     * @return The key of a row's title and artist in a ~TrackKeySet~
+     */
+    private static long trackKey(TrackStore tracks, int row) {
+        return TrackKeySet.key(tracks.titleId(row), tracks.artistId(row));
+    }
+
+    /**
+     * Makes a playlist for every user, in the same way as ~makePlaylist~.
      *
-     * @param user      The user
-     * @param fieldName The field to base the similarity off of
-     * @param method    The method to calculate similarity
+     * @param fieldName      The field to base the similarity off of
+     * @param method         The method to calculate similarity
+     * @param numberOfTracks The total number of tracks in each playlist
+     * @param sink           Receives each user's playlist
      */
-    public HashMap<String, Double> calculateAllSimilarity(String user,
-            String fieldName,
-            String method) {
+    public void makePlaylists(String fieldName, String method,
+            int numberOfTracks, PlaylistSink sink) {
+        makePlaylists(new ArrayList<>(current.dataset.getUsernames()),
+                fieldName, method,
+                numberOfTracks, sink);
+    }
 
-        HashMap<String, Double> similarity = new HashMap<>();
-        String target;
+    /**
+     * Makes a playlist for each of a list of users. Each playlist is the
+     * same as the one ~makePlaylist~ would make, but the work is shared
+     * between the users:
+     *
+     * When most users are wanted and the scores have not been precomputed,
+     * every pair of users is scored once, since the score of a and b is the
+     * score of b and a. Each score is offered to both users' bounded heaps
+     * of best neighbours. The pairs are split into square tiles that are
+     * scored in parallel when an executor has been set.
+     *
+     * Otherwise, or in the approximate mode, each user's playlist is made on
+     * its own, with chunks of users run in parallel when an executor has
+     * been set.
+     *
+     * The sink is called on the calling thread, in the order the users were
+     * given, as soon as each playlist and every one before it are ready.
+     *
+     * @param users          The users to make playlists for
+     * @param fieldName      The field to base the similarity off of
+     * @param method         The method to calculate similarity
+     * @param numberOfTracks The total number of tracks in each playlist
+     * @param sink           Receives each user's playlist
+     * @throws IllegalArgumentException If a user is not known
+     */
+    public void makePlaylists(List<String> users, String fieldName,
+            String method, int numberOfTracks, PlaylistSink sink) {
+        long start = System.nanoTime();
+        Scoring scoring = scoring(fieldName, method);
+        TrackDataset dataset = scoring.version.dataset;
+        int population = dataset.getUsernames().size();
 
-        for (int i = 0; i < mapSize; i++) {
-            target = data.getUsernames().get(i);
-            // If the target and the user are not the same, add their score to
-            // the HashMap
-            if (!target.equals(user)) {
-                similarity.put(target, calculateSimilarity(user, target,
-                        fieldName, method));
+        int[] ids = new int[users.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = dataset.getUserId(users.get(i));
+            if (ids[i] < 0) {
+                throw new IllegalArgumentException("Unknown user: "
+                        + users.get(i));
             }
         }
 
-        return similarity;
+        try {
+            // Scoring every pair costs about half of scoring every requested
+            // user against everyone, so it only pays off for most users
+            if (scoring.version.stores.get(scoring.key) != null
+                    || ids.length * 2 < population
+                    || approximateIndex(scoring) != null) {
+                eachPlaylist(users, scoring, numberOfTracks, sink);
+            } else {
+                pairwisePlaylists(ids, scoring, population, numberOfTracks,
+                        sink);
+            }
+        } finally {
+            latency(PLAYLISTS, scoring.key).record(System.nanoTime() - start);
+        }
     }
 
     /**
-     * Generates a playlist based on a user of a specified number of tracks.
+     * Makes each user's playlist on its own, with ~makePlaylist~'s logic.
+     */
+    private void eachPlaylist(List<String> users, Scoring scoring,
+            int numberOfTracks, PlaylistSink sink) {
+        Executor pool = executor;
+        ArrayList<CompletableFuture<ArrayList<ArrayList<TrackInfo>>>> chunks =
+                new ArrayList<>();
+
+        for (int start = 0; start < users.size(); start += BATCH_CHUNK_SIZE) {
+            List<String> chunk = users.subList(start,
+                    Math.min(start + BATCH_CHUNK_SIZE, users.size()));
+            if (pool == null) {
+                // Make and hand over each playlist straight away
+                for (String user : chunk) {
+                    sink.accept(user, playlist(user, scoring,
+                            numberOfTracks));
+                }
+                continue;
+            }
+            chunks.add(CompletableFuture.supplyAsync(() -> {
+                ArrayList<ArrayList<TrackInfo>> playlists = new ArrayList<>();
+                for (String user : chunk) {
+                    playlists.add(playlist(user, scoring, numberOfTracks));
+                }
+                return playlists;
+            }, pool));
+        }
+
+        int next = 0;
+        for (CompletableFuture<ArrayList<ArrayList<TrackInfo>>> chunk
+                : chunks) {
+            for (ArrayList<TrackInfo> playList : join(chunk)) {
+                sink.accept(users.get(next), playList);
+                next++;
+            }
+        }
+    }
+
+    /**
+     * Makes playlists by scoring every pair of users once.
      *
-     * @param user           The user
-     * @param fieldName      The field to base the similarity off of
-     * @param method         The method to calculate similarity
-     * @param numberoftracks The total number of tracks
+     * @param ids            The requested users' indices
+     * @param scoring        The field and method
+     * @param population     The number of users to score against
+     * @param numberOfTracks The total number of tracks in each playlist
+     * @param sink           Receives each user's playlist
      */
-    public ArrayList<TrackInfo> makePlaylist(String user, String fieldName,
-            String method,
-            int numberOfTracks) {
+    private void pairwisePlaylists(int[] ids, Scoring scoring,
+            int population, int numberOfTracks, PlaylistSink sink) {
+        Version version = scoring.version;
+        int dimension = version.dimension(scoring.feature);
+        List<String> usernames = version.dataset.getUsernames();
 
-        ArrayList<TrackInfo> playList = new ArrayList<>();
+        // Build every vector once, up front
+        SparseVector[] vectors = new SparseVector[population];
+        for (int i = 0; i < population; i++) {
+            vectors[i] = version.featureVector(usernames.get(i),
+                    scoring.feature);
+        }
 
-        HashMap<String, Double> similarityMap = calculateAllSimilarity(user,
-                fieldName, method);
-
-        // Copy elements to new list to avoid pointer issues
-        ArrayList<String> targets = new ArrayList<>();
-        for (int i = 0; i < data.getUsernames().size(); i++) {
-            targets.add(data.getUsernames().get(i));
-        }
-
-        double max = 0; // Max similarity value
-        double currentSimiliarity = 0;
-        int tracksAdded = 0;
-        int size = mapSize; // Number of targets
-        String similarUser = null;
-
-        while (tracksAdded < numberOfTracks) {
-            for (int i = 0; i < size; i++) {
-                if (!user.equals(targets.get(i))) {
-                    // Sets the current similarity value to compare
-                    currentSimiliarity = similarityMap.get(targets.get(i));
-                    if (max < currentSimiliarity) {
-                        max = currentSimiliarity;
-                        similarUser = targets.get(i);
-                    }
+        // Only requested users get a heap, which starts with one neighbour
+        // per track like ~makePlaylist~ does
+        NeighbourHeap[] heaps = new NeighbourHeap[population];
+        for (int id : ids) {
+            if (heaps[id] == null) {
+                heaps[id] = new NeighbourHeap(Math.max(0,
+                        Math.min(numberOfTracks, population)));
+            }
+        }
+
+        // The lower triangle of pairs, cut into square tiles
+        Executor pool = executor;
+        ArrayList<CompletableFuture<Void>> tiles = new ArrayList<>();
+        for (int row = 0; row < population; row += TILE_SIZE) {
+            for (int column = 0; column <= row; column += TILE_SIZE) {
+                final int rowStart = row;
+                final int columnStart = column;
+                Runnable tile = () -> scoreTile(vectors, heaps,
+                        scoring.metric, dimension, rowStart, columnStart,
+                        population);
+                if (pool == null || population < PARALLEL_THRESHOLD) {
+                    tile.run();
+                } else {
+                    tiles.add(CompletableFuture.runAsync(tile, pool));
                 }
             }
+        }
+        join(CompletableFuture.allOf(tiles.toArray(
+                new CompletableFuture<?>[0])));
 
-            // Add tracks to playlist
-            try {
-                for (int i = 0; i < data.getUserTrackMap().get(similarUser).size(); i++) {
-                    playList.add(data.getUserTrackMap().get(similarUser).get(i));
-                    tracksAdded++;
-                    if (tracksAdded == numberOfTracks) {
-                        break;
-                    }
+        // A heap's order does not depend on the order scores were offered,
+        // so these are the same neighbours ~makePlaylist~ picks first
+        int[][] neighbours = new int[population][];
+        double[][] scores = new double[population][];
+        for (int id : ids) {
+            if (neighbours[id] == null) {
+                scores[id] = new double[heaps[id].size()];
+                neighbours[id] = heaps[id].drainDescending(scores[id]);
+            }
+        }
+        for (int i = 0; i < ids.length; i++) {
+            int id = ids[i];
+            ArrayList<TrackInfo> playList = assemble(
+                    version.dataset.getStore(), id, neighbours[id],
+                    scores[id], numberOfTracks);
+            // A full heap could have left out neighbours a short playlist
+            // needs, which ~makePlaylist~ goes on to pick
+            if (playList.size() < numberOfTracks
+                    && neighbours[id].length == Math.min(numberOfTracks,
+                            population)) {
+                playList = playlist(usernames.get(id), scoring,
+                        numberOfTracks);
+            }
+            sink.accept(usernames.get(id), playList);
+        }
+    }
+
+    /**
+     * Scores one tile of pairs and offers each score above 0 to the heaps of
+     * both users in the pair.
+     *
+     * @param rowStart    Index of the tile's first row
+     * @param columnStart Index of the tile's first column, at most rowStart
+     * @param population  The number of users
+     */
+    private void scoreTile(SparseVector[] vectors, NeighbourHeap[] heaps,
+            SimilarityMetric metric, int dimension, int rowStart,
+            int columnStart, int population) {
+        int rowEnd = Math.min(rowStart + TILE_SIZE, population);
+        int columnEnd = Math.min(columnStart + TILE_SIZE, population);
+
+        for (int i = rowStart; i < rowEnd; i++) {
+            // On the diagonal tile only the pairs below the diagonal are
+            // scored
+            int end = Math.min(columnEnd, i);
+            for (int j = columnStart; j < end; j++) {
+                if (heaps[i] == null && heaps[j] == null) {
+                    continue;
+                }
+                double score = metric.score(vectors[i], vectors[j],
+                        dimension);
+                if (score > 0) {
+                    offer(heaps[i], j, score);
+                    offer(heaps[j], i, score);
                 }
-                // If numberOfTracks exceeds the total number of tracks, break
-                // out of the loop once all tracks have been added. This will
-                // be every track not submitted by the user.
-            } catch (NullPointerException e) {
-                break;
             }
+        }
+    }
 
-            // No duplicates
-            similarityMap.remove(similarUser);
-            targets.remove(similarUser);
+    /**
+     * Offers a neighbour to a heap shared between tiles.
+     */
+    private static void offer(NeighbourHeap heap, int index, double score) {
+        if (heap != null) {
+            synchronized (heap) {
+                heap.offer(index, score);
+            }
+        }
+    }
 
-            size--; // Removed one user
-            currentSimiliarity = 0; // Reset max value
-            max = 0;
-            similarUser = null;
+    /**
+     * Waits for parallel work, rethrowing whatever a worker threw.
+     */
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
         }
+    }
 
-        return playList;
+    /**
+     * Reads a user's best neighbours from a precomputed neighbour list, if
+     * that list holds as many of them as are asked for.
+     *
+     * @param user    The user
+     * @param scoring The field and method
+     * @param count   The most neighbours to pick
+     * @param scores  Array of at least ~count~ entries, or as many as there
+     *                are users if that is fewer, to write the neighbours'
+     *                scores into
+     * @return The neighbours with a score above 0, best first, or null if
+     *         they have to be worked out from every user's score
+     */
+    private int[] storedNeighbours(String user, Scoring scoring, int count,
+            double[] scores) {
+        SimilarityStore store = scoring.version.stores.get(scoring.key);
+        int index = scoring.version.dataset.getUserId(user);
+        if (store == null || !scored(store, index) || store.isMatrix()) {
+            return null;
+        }
+
+        int[] neighbours = store.neighbourList(index);
+        double[] stored = store.neighbourScores(index);
+        int positive = 0;
+        while (positive < neighbours.length && stored[positive] > 0) {
+            positive++;
+        }
+
+        // Users left out of the list could still be needed, unless the list
+        // already ends with users that are never used
+        if (positive < count && positive == neighbours.length
+                && !store.isComplete(index)) {
+            return null;
+        }
+        int size = Math.max(0, Math.min(count, positive));
+        System.arraycopy(stored, 0, scores, 0, size);
+        return Arrays.copyOf(neighbours, size);
     }
 
     /**
@@ -314,11 +1944,23 @@ public class TrackRecommender {
      */
     public double euclideanDistance(ArrayList<Double> array1,
             ArrayList<Double> array2) {
-        double sum = 0.0;
-        for (int i = 0; i < array1.size(); i++) {
-            sum += Math.pow((array1.get(i) - array2.get(i)), 2.0);
-        }
-        return 1.0 / (1.0 + Math.sqrt(sum));
+        return euclideanDistance(toArray(array1), toArray(array2));
+    }
+
+    /**
+     * Calculates the Euclidean Distance similarity of two dense vectors
+     * with ~KERNEL~.
+     *
+     * @param array1
+     * @param array2
+     * @return a similarity score
+     */
+    public double euclideanDistance(double[] array1, double[] array2) {
+        return 1.0 / (1.0 + Math.sqrt(KERNEL.squaredDistance(array1, array2)));
+    }
+
+    public double euclideanDistance(float[] array1, float[] array2) {
+        return 1.0 / (1.0 + Math.sqrt(KERNEL.squaredDistance(array1, array2)));
     }
 
     /**
@@ -331,20 +1973,75 @@ public class TrackRecommender {
      */
     public double pearsonDistance(ArrayList<Double> array1,
             ArrayList<Double> array2) {
-        double mean1 = 0.0, mean2 = 0.0;
-        for (int i = 0; i < array1.size(); i++) {
-            mean1 += array1.get(i);
-            mean2 += array2.get(i);
-        }
-        mean1 /= array1.size();
-        mean2 /= array2.size();
-        double sumXY = 0.0, sumX2 = 0.0, sumY2 = 0.0;
-        for (int i = 0; i < array1.size(); i++) {
-            sumXY += ((array1.get(i) - mean1) * (array2.get(i) - mean2));
-            sumX2 += Math.pow(array1.get(i) - mean1, 2.0);
-            sumY2 += Math.pow(array2.get(i) - mean2, 2.0);
+        return pearsonDistance(toArray(array1), toArray(array2));
+    }
+
+    /**
+     * Calculates the Pearson Distance similarity of two dense vectors with
+     * ~KERNEL~, which works out the sums around the means in a second pass.
+     *
+     * @param array1
+     * @param array2
+     * @return a similarity score
+     */
+    public double pearsonDistance(double[] array1, double[] array2) {
+        double[] sums = new double[5];
+        KERNEL.pearsonSums(array1, array2, sums);
+        return pearsonDistance(sums);
+    }
+
+    public double pearsonDistance(float[] array1, float[] array2) {
+        double[] sums = new double[5];
+        KERNEL.pearsonSums(array1, array2, sums);
+        return pearsonDistance(sums);
+    }
+
+    /**
+     * Turns the sums from ~SimilarityKernel.pearsonSums~ into a score, the
+     * same way the sparse version does.
+     */
+    private static double pearsonDistance(double[] sums) {
+        return (1.0 + (sums[2] / (Math.sqrt(sums[3]) * Math.sqrt(sums[4]))))
+                / 2.0;
+    }
+
+    /**
+     * Unboxes a list once so the kernels can run over a primitive array.
+     */
+    private static double[] toArray(ArrayList<Double> list) {
+        double[] array = new double[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
         }
-        return (1.0 + (sumXY / (Math.sqrt(sumX2) * Math.sqrt(sumY2)))) / 2.0;
+        return array;
+    }
+
+    /**
+     * Calculates the Euclidean Distance similarity of two sparse vectors. This
+     * gives the same score as the ArrayList version without visiting the
+     * zero entries.
+     *
+     * @param vector1
+     * @param vector2
+     * @return a similarity score
+     */
+    public double euclideanDistance(SparseVector vector1,
+            SparseVector vector2) {
+        return SimilarityMetric.EUCLIDEAN.score(vector1, vector2, 0);
+    }
+
+    /**
+     * Calculates the Pearson Distance similarity of two sparse vectors with
+     * ~SimilarityMetric.PEARSON~.
+     *
+     * @param vector1
+     * @param vector2
+     * @param dimension The length of the equivalent dense vectors
+     * @return a similarity score
+     */
+    public double pearsonDistance(SparseVector vector1, SparseVector vector2,
+            int dimension) {
+        return SimilarityMetric.PEARSON.score(vector1, vector2, dimension);
     }
 
     public static void main(String[] args) {
@@ -352,7 +2049,8 @@ public class TrackRecommender {
         TrackRecommender rec = new TrackRecommender(file);
         // TEST YOUR CODE HERE
 
-        rec.data.readInput("cs1122-2025.csv");
+        // Score every pair of users up front so each playlist is instant
+        rec.precomputeAllSimilarity();
 
         // Extra Credit: Command-Line UI
         Scanner input = new Scanner(System.in);
@@ -370,7 +2068,7 @@ public class TrackRecommender {
                     + " random ID, enter R: ");
             while (search) {
                 user = input.next();
-                if (rec.data.getUsernames().contains(user) ||
+                if (rec.data.getUserId(user) >= 0 ||
                         user.equals("R")) {
                     search = false;
                 } else {
@@ -482,5 +2180,8 @@ public class TrackRecommender {
 
         input.close();
 
+        // Show where the time went
+        System.out.println("\n" + rec.getMetrics().dump());
+
     }
 }
@@ -0,0 +1,79 @@
+import java.util.Arrays;
+
+public class TrackRowBuffer implements TrackCsvParser.RowHandler {
+
+    /**
+     * The columns of every row in the buffer, in the order they were added.
+     */
+    private String[] users = new String[256];
+    private int[] ranks = new int[256];
+    private String[] titles = new String[256];
+    private String[] artists = new String[256];
+    private String[] albums = new String[256];
+    private String[] genres = new String[256];
+    private int[] plays = new int[256];
+
+    /**
+     * int size: The number of rows in the buffer.
+     */
+    private int size = 0;
+
+    /**
+     * long skippedRows: The number of rows the parser filling this buffer
+     * could not read.
+     */
+    private long skippedRows = 0;
+
+    @Override
+    public void row(String user, int rank, String title, String artist,
+            String album, String genre, int plays) {
+        if (size == users.length) {
+            grow();
+        }
+
+        users[size] = user;
+        ranks[size] = rank;
+        titles[size] = title;
+        artists[size] = artist;
+        albums[size] = album;
+        genres[size] = genre;
+        this.plays[size] = plays;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getSkippedRows() {
+        return skippedRows;
+    }
+
+    public void setSkippedRows(long skippedRows) {
+        this.skippedRows = skippedRows;
+    }
+
+    /**
+     * Hands every row in the buffer to a handler, in the order they were
+     * added.
+     *
+     * @param handler Receives the rows
+     */
+    public void replay(TrackCsvParser.RowHandler handler) {
+        for (int i = 0; i < size; i++) {
+            handler.row(users[i], ranks[i], titles[i], artists[i], albums[i],
+                    genres[i], plays[i]);
+        }
+    }
+
+    private void grow() {
+        int capacity = users.length * 2;
+        users = Arrays.copyOf(users, capacity);
+        ranks = Arrays.copyOf(ranks, capacity);
+        titles = Arrays.copyOf(titles, capacity);
+        artists = Arrays.copyOf(artists, capacity);
+        albums = Arrays.copyOf(albums, capacity);
+        genres = Arrays.copyOf(genres, capacity);
+        plays = Arrays.copyOf(plays, capacity);
+    }
+}
@@ -0,0 +1,217 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+public class TrackSnapshot {
+
+    /**
+     * Receives the row of each track read from a snapshot.
+     */
+    public interface RowListener {
+        void added(int row);
+    }
+
+    /**
+     * Marks the start of a snapshot file ("TRKS").
+     */
+    private static final int MAGIC = 0x54524B53;
+
+    /**
+     * The format written by this class. Snapshots of any other version are
+     * ignored.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Bytes before the body: magic, version, body length, body CRC32, and
+     * the size and modified time of the file the snapshot was made from.
+     */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8 + 8;
+
+    /**
+     * The name of the snapshot kept next to a track file.
+     *
+     * @param filename The track file's name
+     * @return The snapshot's name
+     */
+    public static String path(String filename) {
+        return filename + ".snap";
+    }
+
+    /**
+     * Writes a store to a snapshot file. The body holds the user, title,
+     * artist, album and genre dictionaries in id order, followed by the
+     * columns of every row; each user's list of rows is rebuilt from the
+     * user column when the snapshot is read. The file is written under a
+     * temporary name and then moved into place, so a reader never sees half
+     * a snapshot.
+     *
+     * @param store        The tracks to write
+     * @param filename     The snapshot file to write
+     * @param sourceSize   The size of the track file the store was read from
+     * @param sourceMod    The modified time of that track file
+     * @throws IOException If the snapshot cannot be written
+     */
+    public static void write(TrackStore store, String filename,
+            long sourceSize, long sourceMod) throws IOException {
+        File target = new File(filename);
+        File temp = new File(filename + ".tmp");
+
+        try (FileOutputStream file = new FileOutputStream(temp)) {
+            // Leave room for the header, which needs the body's length and
+            // checksum
+            file.getChannel().position(HEADER_SIZE);
+
+            CRC32 crc = new CRC32();
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(file, 1 << 16), crc);
+            DataOutputStream body = new DataOutputStream(checked);
+
+            writeVocabulary(body, store.getUsers());
+            writeVocabulary(body, store.getTitles());
+            writeVocabulary(body, store.getArtists());
+            writeVocabulary(body, store.getAlbums());
+            writeVocabulary(body, store.getGenres());
+
+            int rows = store.size();
+            body.writeInt(rows);
+            for (int row = 0; row < rows; row++) {
+                body.writeInt(store.userId(row));
+                body.writeInt(store.rank(row));
+                body.writeInt(store.titleId(row));
+                body.writeInt(store.artistId(row));
+                body.writeInt(store.albumId(row));
+                body.writeInt(store.genreId(row));
+                body.writeInt(store.plays(row));
+            }
+            body.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(body.size())
+                .putLong(crc.getValue()).putLong(sourceSize)
+                .putLong(sourceMod).flip();
+            file.getChannel().write(header, 0);
+            file.getFD().sync();
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+
+        Files.move(temp.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a snapshot back into an empty store. The file is memory-mapped,
+     * so the columns are copied straight out of the page cache without any
+     * parsing. A snapshot is only used if its header, version and checksum
+     * are all correct, and if the track file it was made from, when that
+     * file still exists, has the same size and modified time as before.
+     *
+     * @param filename   The snapshot file to read
+     * @param sourceFile The track file the snapshot should describe
+     * @param store      The empty store to fill
+     * @param rows       Called with every row as it is added to the store
+     * @return True if the snapshot was read, false if there is no valid
+     *         snapshot, in which case the store may hold part of it
+     */
+    public static boolean read(String filename, String sourceFile,
+            TrackStore store, RowListener rows) {
+        File file = new File(filename);
+        if (!file.isFile()) {
+            return false;
+        }
+
+        try (FileInputStream input = new FileInputStream(file);
+                FileChannel channel = input.getChannel()) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                return false;
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, size);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return false;
+            }
+            long length = buffer.getLong();
+            long checksum = buffer.getLong();
+            long sourceSize = buffer.getLong();
+            long sourceMod = buffer.getLong();
+
+            File source = new File(sourceFile);
+            if (length != size - HEADER_SIZE || (source.isFile()
+                    && (source.length() != sourceSize
+                    || source.lastModified() != sourceMod))) {
+                return false;
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(buffer.slice());
+            if (crc.getValue() != checksum) {
+                return false;
+            }
+
+            readVocabulary(buffer, store.getUsers());
+            readVocabulary(buffer, store.getTitles());
+            readVocabulary(buffer, store.getArtists());
+            readVocabulary(buffer, store.getAlbums());
+            readVocabulary(buffer, store.getGenres());
+
+            int count = buffer.getInt();
+            for (int row = 0; row < count; row++) {
+                rows.added(store.add(buffer.getInt(), buffer.getInt(),
+                        buffer.getInt(), buffer.getInt(), buffer.getInt(),
+                        buffer.getInt(), buffer.getInt()));
+            }
+            if (buffer.hasRemaining()) {
+                return false;
+            }
+
+            return true;
+
+        } catch (IOException | RuntimeException e) {
+            // A snapshot that cannot be read is the same as no snapshot
+            return false;
+        }
+    }
+
+    private static void writeVocabulary(DataOutputStream body,
+            Vocabulary vocabulary) throws IOException {
+        List<String> values = vocabulary.values();
+        body.writeInt(values.size());
+        for (String value : values) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            body.writeInt(bytes.length);
+            body.write(bytes);
+        }
+    }
+
+    private static void readVocabulary(ByteBuffer buffer,
+            Vocabulary vocabulary) {
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            // Every value was distinct when written, so each must get the
+            // next id
+            if (vocabulary.add(new String(bytes, StandardCharsets.UTF_8))
+                    != i) {
+                throw new IllegalStateException("Duplicate value in snapshot");
+            }
+        }
+    }
+}
@@ -0,0 +1,347 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+public class TrackStore {
+
+    /**
+     * Dictionaries that turn each user, title, artist, album and genre into
+     * the int id stored in the columns below.
+     */
+    private Vocabulary users = new Vocabulary();
+    private Vocabulary titles = new Vocabulary();
+    private Vocabulary artists = new Vocabulary();
+    private Vocabulary albums = new Vocabulary();
+    private Vocabulary genres = new Vocabulary();
+
+    /**
+     * One column per field, holding the value of every track in the order
+     * the tracks were added, followed by spare room. A track's index in the
+     * columns is its row. A copy of the store adds its tracks in the spare
+     * room of the same columns, which the store it was copied from never
+     * reads.
+     */
+    private int[] userIds = new int[1024];
+    private int[] titleIds = new int[1024];
+    private int[] artistIds = new int[1024];
+    private int[] albumIds = new int[1024];
+    private int[] genreIds = new int[1024];
+    private int[] ranks = new int[1024];
+    private int[] plays = new int[1024];
+
+    /**
+     * int size: The number of tracks in the store.
+     */
+    private int size = 0;
+
+    /**
+     * The rows of each user's tracks, in the order they were added, indexed
+     * by user id.
+     */
+    private ChunkedList<IntList> userRows = new ChunkedList<>();
+
+    /**
+     * The lists and columns a copy of a store has made its own, or null if
+     * the store is not a copy and everything in it is its own. A copy shares
+     * the rest with the store it was copied from, and copies each column,
+     * or shares each list of rows with ~IntList.share~, before changing it.
+     */
+    private Set<Object> owned = null;
+
+    public TrackStore() {
+    }
+
+    /**
+     * Makes a copy that shares the storage of another store.
+     */
+    private TrackStore(TrackStore base) {
+        users = base.users.copy();
+        titles = base.titles.copy();
+        artists = base.artists.copy();
+        albums = base.albums.copy();
+        genres = base.genres.copy();
+        userIds = base.userIds;
+        titleIds = base.titleIds;
+        artistIds = base.artistIds;
+        albumIds = base.albumIds;
+        genreIds = base.genreIds;
+        ranks = base.ranks;
+        plays = base.plays;
+        size = base.size;
+        userRows = base.userRows.copy();
+        owned = Collections.newSetFromMap(new IdentityHashMap<>());
+    }
+
+    /**
+     * Makes a copy of the store that tracks can be added to and changed in
+     * without changing this one. The copy starts out sharing everything
+     * with this store and copies a list or column only when it first
+     * changes it. The lists of each user's rows are chunked and each one
+     * only grows, so a copy that a track is added to shares all but one
+     * chunk of them and the spare room at the end of that user's list. This store must not be changed
+     * afterwards, but it can go on being read while the copy is changed.
+     *
+     * @return The copy
+     */
+    public TrackStore copy() {
+        return new TrackStore(this);
+    }
+
+    /**
+     * Adds a track to the store.
+     *
+     * @param user   A string user name
+     * @param rank   The rank of the track for this user
+     * @param title  The title of the track
+     * @param artist The artist's name who made the track
+     * @param album  The album number for the track
+     * @param genre  The genre of the track
+     * @param plays  The number of times the user played the track
+     * @return The track's row
+     */
+    public int add(String user, int rank, String title, String artist,
+            String album, String genre, int plays) {
+        if (size == userIds.length) {
+            grow();
+        }
+
+        int userId = users.add(user);
+        IntList rows = ownRows(userId);
+
+        userIds[size] = userId;
+        titleIds[size] = titles.add(title);
+        artistIds[size] = artists.add(artist);
+        albumIds[size] = albums.add(album);
+        genreIds[size] = genres.add(genre);
+        ranks[size] = rank;
+        this.plays[size] = plays;
+        rows.add(size);
+
+        size++;
+        return size - 1;
+    }
+
+    /**
+     * Adds a track whose values are already in the dictionaries, such as one
+     * read back from a snapshot.
+     *
+     * @param userId   The user's id
+     * @param rank     The rank of the track for this user
+     * @param titleId  The title's id
+     * @param artistId The artist's id
+     * @param albumId  The album's id
+     * @param genreId  The genre's id
+     * @param plays    The number of times the user played the track
+     * @return The track's row
+     * @throws IllegalArgumentException If an id is not in its dictionary
+     */
+    public int add(int userId, int rank, int titleId, int artistId,
+            int albumId, int genreId, int plays) {
+        if (!contains(users, userId) || !contains(titles, titleId)
+                || !contains(artists, artistId) || !contains(albums, albumId)
+                || !contains(genres, genreId)) {
+            throw new IllegalArgumentException("Row " + size
+                    + " has an id that is not in its dictionary");
+        }
+        if (size == userIds.length) {
+            grow();
+        }
+        IntList rows = ownRows(userId);
+
+        userIds[size] = userId;
+        titleIds[size] = titleId;
+        artistIds[size] = artistId;
+        albumIds[size] = albumId;
+        genreIds[size] = genreId;
+        ranks[size] = rank;
+        this.plays[size] = plays;
+        rows.add(size);
+
+        size++;
+        return size - 1;
+    }
+
+    /**
+     * Finds the list of a user's rows for a track to be added to, adding
+     * empty lists up to it first if needed. A list shared with another
+     * store is replaced by one that shares its values, which rows can be
+     * added to without the other store seeing them.
+     *
+     * @param userId The id of the user
+     * @return The user's rows, which this store owns
+     */
+    private IntList ownRows(int userId) {
+        while (userRows.size() <= userId) {
+            userRows.add(claim(new IntList()));
+        }
+
+        IntList rows = userRows.get(userId);
+        if (!owns(rows)) {
+            rows = claim(rows.share());
+            userRows.set(userId, rows);
+        }
+        return rows;
+    }
+
+    private boolean owns(Object part) {
+        return owned == null || owned.contains(part);
+    }
+
+    private <T> T claim(T part) {
+        if (owned != null) {
+            owned.add(part);
+        }
+        return part;
+    }
+
+    private static boolean contains(Vocabulary vocabulary, int id) {
+        return id >= 0 && id < vocabulary.size();
+    }
+
+    /**
+     * @return The number of tracks in the store
+     */
+    public int size() {
+        return size;
+    }
+
+    public Vocabulary getUsers() {
+        return users;
+    }
+
+    public Vocabulary getTitles() {
+        return titles;
+    }
+
+    public Vocabulary getArtists() {
+        return artists;
+    }
+
+    public Vocabulary getAlbums() {
+        return albums;
+    }
+
+    public Vocabulary getGenres() {
+        return genres;
+    }
+
+    public int userId(int row) {
+        return userIds[row];
+    }
+
+    public int titleId(int row) {
+        return titleIds[row];
+    }
+
+    public int artistId(int row) {
+        return artistIds[row];
+    }
+
+    public int albumId(int row) {
+        return albumIds[row];
+    }
+
+    public int genreId(int row) {
+        return genreIds[row];
+    }
+
+    public int rank(int row) {
+        return ranks[row];
+    }
+
+    public int plays(int row) {
+        return plays[row];
+    }
+
+    public void setRank(int row, int rank) {
+        if (!owns(ranks)) {
+            ranks = claim(ranks.clone());
+        }
+        ranks[row] = rank;
+    }
+
+    public void setPlays(int row, int plays) {
+        if (!owns(this.plays)) {
+            this.plays = claim(this.plays.clone());
+        }
+        this.plays[row] = plays;
+    }
+
+    /**
+     * Looks for a user's track with a given title.
+     *
+     * @param userId  The id of the user
+     * @param titleId The id of the title
+     * @return The row of the user's first track with that title, or -1 if
+     *         they have none
+     */
+    public int find(int userId, int titleId) {
+        IntList rows = userRows.get(userId);
+        for (int i = 0; i < rows.size(); i++) {
+            if (titleIds[rows.get(i)] == titleId) {
+                return rows.get(i);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param userId The id of a user
+     * @return The number of tracks the user has
+     */
+    public int trackCount(int userId) {
+        return userRows.get(userId).size();
+    }
+
+    /**
+     * Looks up the row of one of a user's tracks.
+     *
+     * @param userId The id of the user
+     * @param index  The index of the track in the user's list of tracks
+     * @return The track's row
+     */
+    public int row(int userId, int index) {
+        return userRows.get(userId).get(index);
+    }
+
+    /**
+     * Builds a TrackInfo for a row. The TrackInfo is a copy, so changing it
+     * does not change the store.
+     *
+     * @param row The track's row
+     * @return A new TrackInfo holding the track's values
+     */
+    public TrackInfo track(int row) {
+        return new TrackInfo(users.get(userIds[row]), titles.get(titleIds[row]),
+                artists.get(artistIds[row]), albums.get(albumIds[row]),
+                genres.get(genreIds[row]), ranks[row], plays[row]);
+    }
+
+    /**
+     * Builds a TrackInfo for each of a user's tracks.
+     *
+     * @param userId The id of the user
+     * @return A new list of the user's tracks, in the order they were added
+     */
+    public ArrayList<TrackInfo> tracks(int userId) {
+        IntList rows = userRows.get(userId);
+        ArrayList<TrackInfo> tracks = new ArrayList<>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            tracks.add(track(rows.get(i)));
+        }
+        return tracks;
+    }
+
+    private void grow() {
+        int capacity = userIds.length * 2;
+        userIds = Arrays.copyOf(userIds, capacity);
+        titleIds = Arrays.copyOf(titleIds, capacity);
+        artistIds = Arrays.copyOf(artistIds, capacity);
+        albumIds = Arrays.copyOf(albumIds, capacity);
+        genreIds = Arrays.copyOf(genreIds, capacity);
+        ranks = claim(Arrays.copyOf(ranks, capacity));
+        plays = claim(Arrays.copyOf(plays, capacity));
+    }
+}
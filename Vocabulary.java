@@ -0,0 +1,128 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class Vocabulary {
+
+    /**
+     * ConcurrentHashMap ids: Maps each distinct value to its dense id. It is
+     * shared with every copy of the vocabulary, so an id is only trusted if
+     * it is below ~size~ and ~values~ holds the value at it.
+     */
+    private ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+
+    /**
+     * String[] values: The distinct values, stored at the index of their id,
+     * followed by spare room. Copies share it until one of them grows it, and
+     * only ever write past their own ~size~.
+     */
+    private String[] values = new String[16];
+
+    /**
+     * int size: The number of distinct values in the vocabulary.
+     */
+    private int size = 0;
+
+    public Vocabulary() {
+    }
+
+    /**
+     * Makes a copy that shares this vocabulary's storage.
+     */
+    private Vocabulary(Vocabulary base) {
+        ids = base.ids;
+        values = base.values;
+        size = base.size;
+    }
+
+    /**
+     * Makes a copy of the vocabulary that values can be added to without
+     * changing this one. The copy shares this vocabulary's storage, so this
+     * vocabulary must not have values added to it afterwards, but it can go
+     * on being read while the copy is changed.
+     *
+     * @return The copy
+     */
+    public Vocabulary copy() {
+        return new Vocabulary(this);
+    }
+
+    /**
+     * Adds a value to the vocabulary if it is not already present.
+     *
+     * @param value The value to add
+     * @return The id of the value
+     */
+    public int add(String value) {
+        int id = indexOf(value);
+
+        // Ids are handed out in the order values are first seen, so they
+        // always stay between 0 and size() - 1
+        if (id < 0) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            id = size;
+            values[id] = value;
+            ids.put(value, id);
+            size++;
+        }
+
+        return id;
+    }
+
+    /**
+     * Looks up the id of a value.
+     *
+     * @param value The value to look up
+     * @return The id of the value, or -1 if it is not in the vocabulary
+     */
+    public int indexOf(String value) {
+        Integer id = ids.get(value);
+        // A copy may have added the value after this vocabulary was copied
+        if (id == null || id >= size || !values[id].equals(value)) {
+            return -1;
+        }
+        return id;
+    }
+
+    /**
+     * Looks up the value for an id.
+     *
+     * @param id The id to look up
+     * @return The value with that id
+     */
+    public String get(int id) {
+        if (id >= size) {
+            throw new IndexOutOfBoundsException("Index " + id
+                    + " out of bounds for length " + size);
+        }
+        return values[id];
+    }
+
+    /**
+     * @return Every value, in id order. The list cannot be changed, and
+     *         values added to the vocabulary later are not in it.
+     */
+    public List<String> values() {
+        return Collections.unmodifiableList(Arrays.asList(values).subList(0,
+                size));
+    }
+
+    /**
+     * @return The number of distinct values in the vocabulary
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes every value from the vocabulary. Copies of it keep theirs.
+     */
+    public void clear() {
+        ids = new ConcurrentHashMap<>();
+        values = new String[16];
+        size = 0;
+    }
+}
@@ -0,0 +1,52 @@
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * An OffHeapAllocator that allocates native memory segments, each in a
+ * resource scope of its own, so that closing a block frees its memory
+ * straight away. A block that is never closed is freed by a cleaner once
+ * it can no longer be reached. It is kept apart from the other sources
+ * because it needs the incubating foreign memory API:
+ *
+ *   javac --add-modules jdk.incubator.foreign -cp . -d . foreign/*.java
+ *   java --add-modules jdk.incubator.foreign TrackRecommender
+ *
+ * ~OffHeapAllocator.load~ picks it up when it is there; without it stores
+ * can only be kept on the heap.
+ */
+public class ForeignOffHeapAllocator implements OffHeapAllocator {
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    public ForeignOffHeapAllocator() {
+        // Touch the module here, so that ~OffHeapAllocator.load~ fails when
+        // it is missing rather than the first allocation
+        ResourceScope.globalScope();
+    }
+
+    @Override
+    public Block allocate(int bytes) {
+        // A shared scope, as blocks are read from many threads at once
+        ResourceScope scope = ResourceScope.newSharedScope(CLEANER);
+        MemorySegment segment = MemorySegment.allocateNative(bytes,
+                Double.BYTES, scope);
+        ByteBuffer buffer = segment.asByteBuffer().order(
+                ByteOrder.nativeOrder());
+        return new Block() {
+            @Override
+            public ByteBuffer buffer() {
+                return buffer;
+            }
+
+            @Override
+            public void close() {
+                if (scope.isAlive()) {
+                    scope.close();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,166 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * A SimilarityKernel that works on as many values at once as the CPU's
+ * widest vector registers hold (8 doubles with AVX-512). It is kept apart
+ * from the other sources because it needs the incubating Vector API:
+ *
+ *   javac --add-modules jdk.incubator.vector -cp . -d . vector/*.java
+ *   java --add-modules jdk.incubator.vector TrackRecommender
+ *
+ * ~SimilarityKernel.load~ picks it up when it is there and falls back to
+ * ~ScalarSimilarityKernel~ when it is not.
+ */
+public class VectorSimilarityKernel implements SimilarityKernel {
+
+    private static final VectorSpecies<Double> DOUBLES =
+            DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOATS =
+            FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public double squaredDistance(double[] x, double[] y) {
+        ScalarSimilarityKernel.checkLengths(x.length, y.length);
+
+        DoubleVector sum = DoubleVector.zero(DOUBLES);
+        int i = 0;
+        for (int bound = DOUBLES.loopBound(x.length); i < bound;
+                i += DOUBLES.length()) {
+            DoubleVector d = DoubleVector.fromArray(DOUBLES, x, i)
+                    .sub(DoubleVector.fromArray(DOUBLES, y, i));
+            sum = d.fma(d, sum);
+        }
+
+        double total = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < x.length; i++) {
+            double d = x[i] - y[i];
+            total += d * d;
+        }
+        return total;
+    }
+
+    /**
+     * Float lanes are summed in float, so results drift from the double
+     * kernels once the sums pass 2^24.
+     */
+    @Override
+    public double squaredDistance(float[] x, float[] y) {
+        ScalarSimilarityKernel.checkLengths(x.length, y.length);
+
+        FloatVector sum = FloatVector.zero(FLOATS);
+        int i = 0;
+        for (int bound = FLOATS.loopBound(x.length); i < bound;
+                i += FLOATS.length()) {
+            FloatVector d = FloatVector.fromArray(FLOATS, x, i)
+                    .sub(FloatVector.fromArray(FLOATS, y, i));
+            sum = d.fma(d, sum);
+        }
+
+        double total = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < x.length; i++) {
+            double d = (double) x[i] - y[i];
+            total += d * d;
+        }
+        return total;
+    }
+
+    /**
+     * The lanes add up their own share of each sum, so the sums are added
+     * in a different order from the scalar kernel's and can differ from
+     * them in the last bits.
+     */
+    @Override
+    public void pearsonSums(double[] x, double[] y, double[] sums) {
+        ScalarSimilarityKernel.checkLengths(x.length, y.length);
+
+        DoubleVector sumX = DoubleVector.zero(DOUBLES);
+        DoubleVector sumY = sumX;
+        int i = 0;
+        int bound = DOUBLES.loopBound(x.length);
+        for (; i < bound; i += DOUBLES.length()) {
+            sumX = sumX.add(DoubleVector.fromArray(DOUBLES, x, i));
+            sumY = sumY.add(DoubleVector.fromArray(DOUBLES, y, i));
+        }
+        sums[0] = sumX.reduceLanes(VectorOperators.ADD);
+        sums[1] = sumY.reduceLanes(VectorOperators.ADD);
+        for (; i < x.length; i++) {
+            sums[0] += x[i];
+            sums[1] += y[i];
+        }
+
+        double meanX = sums[0] / x.length;
+        double meanY = sums[1] / y.length;
+        DoubleVector meansX = DoubleVector.broadcast(DOUBLES, meanX);
+        DoubleVector meansY = DoubleVector.broadcast(DOUBLES, meanY);
+        DoubleVector sumXY = DoubleVector.zero(DOUBLES);
+        DoubleVector sumX2 = sumXY;
+        DoubleVector sumY2 = sumXY;
+        for (i = 0; i < bound; i += DOUBLES.length()) {
+            DoubleVector a = DoubleVector.fromArray(DOUBLES, x, i)
+                    .sub(meansX);
+            DoubleVector b = DoubleVector.fromArray(DOUBLES, y, i)
+                    .sub(meansY);
+            sumXY = a.fma(b, sumXY);
+            sumX2 = a.fma(a, sumX2);
+            sumY2 = b.fma(b, sumY2);
+        }
+        sums[2] = sumXY.reduceLanes(VectorOperators.ADD);
+        sums[3] = sumX2.reduceLanes(VectorOperators.ADD);
+        sums[4] = sumY2.reduceLanes(VectorOperators.ADD);
+        for (; i < x.length; i++) {
+            double a = x[i] - meanX;
+            double b = y[i] - meanY;
+            sums[2] += a * b;
+            sums[3] += a * a;
+            sums[4] += b * b;
+        }
+    }
+
+    @Override
+    public void pearsonSums(float[] x, float[] y, double[] sums) {
+        ScalarSimilarityKernel.checkLengths(x.length, y.length);
+
+        FloatVector sumX = FloatVector.zero(FLOATS);
+        FloatVector sumY = sumX;
+        int i = 0;
+        int bound = FLOATS.loopBound(x.length);
+        for (; i < bound; i += FLOATS.length()) {
+            sumX = sumX.add(FloatVector.fromArray(FLOATS, x, i));
+            sumY = sumY.add(FloatVector.fromArray(FLOATS, y, i));
+        }
+        sums[0] = sumX.reduceLanes(VectorOperators.ADD);
+        sums[1] = sumY.reduceLanes(VectorOperators.ADD);
+        for (; i < x.length; i++) {
+            sums[0] += x[i];
+            sums[1] += y[i];
+        }
+
+        double meanX = sums[0] / x.length;
+        double meanY = sums[1] / y.length;
+        FloatVector meansX = FloatVector.broadcast(FLOATS, (float) meanX);
+        FloatVector meansY = FloatVector.broadcast(FLOATS, (float) meanY);
+        FloatVector sumXY = FloatVector.zero(FLOATS);
+        FloatVector sumX2 = sumXY;
+        FloatVector sumY2 = sumXY;
+        for (i = 0; i < bound; i += FLOATS.length()) {
+            FloatVector a = FloatVector.fromArray(FLOATS, x, i).sub(meansX);
+            FloatVector b = FloatVector.fromArray(FLOATS, y, i).sub(meansY);
+            sumXY = a.fma(b, sumXY);
+            sumX2 = a.fma(a, sumX2);
+            sumY2 = b.fma(b, sumY2);
+        }
+        sums[2] = sumXY.reduceLanes(VectorOperators.ADD);
+        sums[3] = sumX2.reduceLanes(VectorOperators.ADD);
+        sums[4] = sumY2.reduceLanes(VectorOperators.ADD);
+        for (; i < x.length; i++) {
+            double a = x[i] - meanX;
+            double b = y[i] - meanY;
+            sums[2] += a * b;
+            sums[3] += a * a;
+            sums[4] += b * b;
+        }
+    }
+}